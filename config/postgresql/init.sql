@@ -23,3 +23,5 @@ CREATE TABLE counter_values
   updated    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
   UNIQUE (counter_id, user_id)
 );
+
+CREATE INDEX counter_values_user_counter ON counter_values (user_id, counter_id);
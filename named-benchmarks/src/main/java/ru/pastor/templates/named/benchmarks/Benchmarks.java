@@ -0,0 +1,30 @@
+package ru.pastor.templates.named.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск микробенчмарков горячего пути счетчиков с профилировщиком сборки мусора.
+ * Кроме времени операции JMH выводит скорость выделения памяти на операцию (gc.alloc.rate.norm),
+ * по которой сравниваются версии до и после изменения.
+ * <p>
+ * Принимает аргументы командной строки JMH, например:
+ * {@code java -jar named-benchmarks/target/benchmarks.jar RedisCodec -rf json -rff baseline.json}.
+ */
+public final class Benchmarks {
+
+  private Benchmarks() {
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    new Runner(new OptionsBuilder()
+      .parent(new CommandLineOptions(args))
+      .addProfiler(GCProfiler.class)
+      .build())
+      .run();
+  }
+}
@@ -0,0 +1,45 @@
+package ru.pastor.templates.named.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Формирование и разбор ключей значений счетчиков.
+ * Вариант с String.format оставлен как точка отсчета: так ключ строился до перехода на {@link Keys}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysBenchmark {
+
+  private long userId = 1_234_567L;
+  private long counterId = 42L;
+  private String key = Keys.of(userId, counterId);
+
+  @Benchmark
+  public String of() {
+    return Keys.of(userId, counterId);
+  }
+
+  @Benchmark
+  public String format() {
+    return String.format("named:%d:%d", userId, counterId);
+  }
+
+  @Benchmark
+  public long parse() {
+    return Keys.userId(key) + Keys.counterId(key);
+  }
+}
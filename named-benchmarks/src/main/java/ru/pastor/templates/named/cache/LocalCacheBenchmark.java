@@ -0,0 +1,103 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение и увеличение через локальный кэш значений при одновременном обращении нескольких потоков.
+ * Делегат хранит значения в памяти, поэтому измеряется только стоимость самого кэша и Reactor.
+ * При одном ключе все потоки конкурируют за одну запись кэша.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LocalCacheBenchmark {
+
+  @Param({"1", "1024"})
+  private int keyCount;
+
+  private String[] keys;
+  private NamedCache<String, Long> cache;
+
+  @Setup
+  public void setUp() {
+    keys = new String[keyCount];
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = Keys.of(1, i + 1);
+    }
+    cache = new NamedCache.Local<>("benchmark", Duration.ofHours(1), new SimpleMeterRegistry(), new Memory(), null);
+    for (String key : keys) {
+      cache.get(key).block();
+    }
+  }
+
+  @Benchmark
+  public Long get() {
+    return cache.get(key()).block();
+  }
+
+  @Benchmark
+  public Long increment() {
+    return cache.increment(key(), 1L).block();
+  }
+
+  private String key() {
+    return keyCount == 1 ? keys[0] : keys[ThreadLocalRandom.current().nextInt(keyCount)];
+  }
+
+  /**
+   * Делегат, хранящий значения в памяти.
+   */
+  private static final class Memory implements NamedCache<String, Long> {
+    private final Map<String, Long> values = new ConcurrentHashMap<>();
+
+    @Override
+    public Mono<Long> get(String key) {
+      return Mono.just(values.computeIfAbsent(key, k -> 0L));
+    }
+
+    @Override
+    public Mono<Void> delete(String key) {
+      values.remove(key);
+      return Mono.empty();
+    }
+
+    @Override
+    public Mono<Long> increment(String key, Long value) {
+      return Mono.just(values.merge(key, value, Long::sum));
+    }
+
+    @Override
+    public Mono<Long> update(String key, Long value) {
+      values.put(key, value);
+      return Mono.just(value);
+    }
+
+    @Override
+    public Mono<Long> reset(String key, Long value) {
+      return update(key, value);
+    }
+  }
+}
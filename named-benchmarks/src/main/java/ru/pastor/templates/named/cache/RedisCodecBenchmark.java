@@ -0,0 +1,74 @@
+package ru.pastor.templates.named.cache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование ключей и значений счетчиков для Redis.
+ * Варианты с BigInteger и UTF-8 оставлены как точка отсчета: так значения и ключи кодировались до {@link RedisCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisCodecBenchmark {
+
+  @Param({"7", "1234567", "9000000000"})
+  private long value;
+
+  private byte[] encoded;
+  private byte[] legacy;
+  private String key;
+
+  @Setup
+  public void setUp() {
+    encoded = RedisCodec.NUMBER.serialize(value);
+    legacy = BigInteger.valueOf(value).toByteArray();
+    key = Keys.of(1_234_567L, 42L);
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return RedisCodec.NUMBER.serialize(value);
+  }
+
+  @Benchmark
+  public Number deserialize() {
+    return RedisCodec.NUMBER.deserialize(encoded);
+  }
+
+  @Benchmark
+  public byte[] serializeBigInteger() {
+    return BigInteger.valueOf(value).toByteArray();
+  }
+
+  @Benchmark
+  public long deserializeBigInteger() {
+    return new BigInteger(legacy).longValue();
+  }
+
+  @Benchmark
+  public byte[] serializeKey() {
+    return RedisCodec.KEY.serialize(key);
+  }
+
+  @Benchmark
+  public byte[] serializeKeyUtf8() {
+    return RedisSerializer.string().serialize(key);
+  }
+}
@@ -0,0 +1,333 @@
+package ru.pastor.templates.named.load;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.convert.DurationStyle;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.server.grpc.CatalogueFilter;
+import ru.pastor.templates.named.server.grpc.CataloguePutRequest;
+import ru.pastor.templates.named.server.grpc.CountFilter;
+import ru.pastor.templates.named.server.grpc.CountIncrementRequest;
+import ru.pastor.templates.named.server.grpc.ReactorCatalogueServiceGrpc;
+import ru.pastor.templates.named.server.grpc.ReactorCountServiceGrpc;
+import ru.pastor.templates.named.server.grpc.Status;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Генератор нагрузки на gRPC API счетчиков для измерения пропускной способности узла.
+ * Перед запуском создает в каталоге счетчики нагрузки, затем вызывает Get и Increment сервиса CountService
+ * и, если задано, List сервиса CatalogueService в заданной пропорции. Пользователи и счетчики выбираются
+ * равномерно или по распределению Ципфа.
+ * <p>
+ * При заданной частоте (--rps) запросы отправляются по расписанию независимо от ответов, а задержка
+ * отсчитывается от запланированного времени отправки, поэтому очередь перед перегруженным сервером
+ * попадает в измерения, а не скрывается (coordinated omission). Без частоты каждый из --concurrency
+ * потоков отправляет следующий запрос сразу после ответа на предыдущий.
+ * <p>
+ * Каждую секунду выводится частота и задержки за секунду, в конце - итог за время измерения после прогрева:
+ * частота и перцентили p50, p90, p99, p99.9 по HdrHistogram.
+ * <p>
+ * Пример:
+ * {@code java -cp named-benchmarks/target/benchmarks.jar ru.pastor.templates.named.load.LoadGenerator
+ * --target=localhost:30323 --rps=20000 --concurrency=256 --duration=60s --distribution=zipfian --read-ratio=0.2}
+ */
+public final class LoadGenerator {
+  /**
+   * Период, с которым при заданной частоте отправляются накопившиеся по расписанию запросы.
+   */
+  private static final Duration TICK = Duration.ofMillis(1);
+
+  private final Options options;
+  private final List<ReactorCountServiceGrpc.ReactorCountServiceStub> counts = new ArrayList<>();
+  private final List<ReactorCatalogueServiceGrpc.ReactorCatalogueServiceStub> catalogues = new ArrayList<>();
+  private final Selector users;
+  private final Selector counters;
+  private final String[] names;
+  private final long[] ids;
+  private final Stats reads = new Stats("get");
+  private final Stats writes = new Stats("increment");
+  private final Stats lists = new Stats("catalogue");
+
+  private LoadGenerator(Options options, List<ManagedChannel> channels) {
+    this.options = options;
+    for (ManagedChannel channel : channels) {
+      counts.add(ReactorCountServiceGrpc.newReactorStub(channel));
+      catalogues.add(ReactorCatalogueServiceGrpc.newReactorStub(channel));
+    }
+    this.users = Selector.of(options.distribution(), options.users(), options.theta());
+    this.counters = Selector.of(options.distribution(), options.counters(), options.theta());
+    this.names = new String[options.counters()];
+    this.ids = new long[options.counters()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = options.prefix() + i;
+    }
+  }
+
+  public static void main(String[] args) {
+    Options options = Options.parse(args);
+    List<ManagedChannel> channels = new ArrayList<>();
+    for (int i = 0; i < options.channels(); i++) {
+      channels.add(ManagedChannelBuilder.forTarget(options.target()).usePlaintext().build());
+    }
+    try {
+      new LoadGenerator(options, channels).run();
+    } finally {
+      channels.forEach(ManagedChannel::shutdownNow);
+    }
+  }
+
+  private void run() {
+    prepare();
+    System.out.printf("Load %s: %s, %d users and %d counters (%s), read ratio %.2f, catalogue ratio %.2f%n",
+      options.target(), options.rps() > 0 ? options.rps() + " rps" : "closed loop", options.users(), options.counters(),
+      options.distribution(), options.readRatio(), options.catalogueRatio());
+    long start = System.nanoTime();
+    long measured = start + options.warmup().toNanos();
+    long end = measured + options.duration().toNanos();
+    Disposable report = Flux.interval(Duration.ofSeconds(1), Duration.ofSeconds(1))
+      .subscribe(second -> report(second + 1, System.nanoTime() > measured));
+    try {
+      (options.rps() > 0 ? open(start, end) : closed(end)).blockLast();
+    } finally {
+      report.dispose();
+    }
+    for (Stats stats : List.of(reads, writes, lists)) {
+      stats.interval(true);
+    }
+    summary((System.nanoTime() - measured) / 1e9);
+  }
+
+  /**
+   * Создает счетчики нагрузки в каталоге и запоминает их идентификаторы.
+   */
+  private void prepare() {
+    Flux.range(0, names.length)
+      .flatMap(i -> catalogues.get(0).put(CataloguePutRequest.newBuilder()
+          .setName(names[i])
+          .setDescription("Load generator counter")
+          .build())
+        .doOnNext(reply -> {
+          if (reply.getStatus() != Status.SUCCESS) {
+            throw new IllegalStateException("Can't create counter " + names[i] + ": " + reply.getError().getMessage());
+          }
+          ids[i] = reply.getValue().getId();
+        }), 16)
+      .blockLast();
+  }
+
+  /**
+   * Отправляет запросы по расписанию с заданной частотой. Запрос с номером i запланирован на
+   * start + i / rps; если ответы не успевают, запланированные запросы ждут в очереди.
+   */
+  private Flux<Void> open(long start, long end) {
+    double period = 1e9 / options.rps();
+    AtomicLong scheduled = new AtomicLong();
+    return Flux.interval(TICK)
+      .onBackpressureBuffer()
+      .map(tick -> System.nanoTime())
+      .takeWhile(now -> now < end)
+      .concatMapIterable(now -> {
+        long due = (long) ((now - start) / period);
+        List<Long> intended = new ArrayList<>();
+        for (long i = scheduled.get(); i < due; i++) {
+          intended.add(start + (long) (i * period));
+        }
+        scheduled.set(Math.max(due, scheduled.get()));
+        return intended;
+      })
+      .flatMap(this::call, options.concurrency());
+  }
+
+  /**
+   * Отправляет запросы с заданным числом одновременных запросов: следующий - сразу после ответа.
+   */
+  private Flux<Void> closed(long end) {
+    return Flux.range(0, options.concurrency())
+      .flatMap(worker -> Mono.defer(() -> call(System.nanoTime()))
+        .repeat(() -> System.nanoTime() < end), options.concurrency());
+  }
+
+  /**
+   * Выполняет один запрос выбранного по пропорции типа и записывает его задержку.
+   *
+   * @param intended запланированное время отправки, от которого отсчитывается задержка
+   */
+  private Mono<Void> call(long intended) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    double operation = random.nextDouble();
+    long userId = users.next(random) + 1;
+    int counter = (int) counters.next(random);
+    Stats stats;
+    Mono<Boolean> request;
+    if (operation < options.catalogueRatio()) {
+      stats = lists;
+      request = catalogues.get(random.nextInt(catalogues.size()))
+        .list(CatalogueFilter.newBuilder().setName(names[counter]).build())
+        .map(reply -> reply.getStatus() != Status.FAILURE);
+    } else if (operation < options.catalogueRatio() + options.readRatio()) {
+      CountFilter.Builder filter = CountFilter.newBuilder().setUserId(userId);
+      stats = reads;
+      request = counts.get(random.nextInt(counts.size()))
+        .get((options.byId() ? filter.setId(ids[counter]) : filter.setName(names[counter])).build())
+        .map(reply -> reply.getStatus() != Status.FAILURE);
+    } else {
+      CountIncrementRequest.Builder increment = CountIncrementRequest.newBuilder()
+        .setUserId(userId)
+        .setDelta(options.delta());
+      stats = writes;
+      request = counts.get(random.nextInt(counts.size()))
+        .increment((options.byId() ? increment.setId(ids[counter]) : increment.setName(names[counter])).build())
+        .map(reply -> reply.getStatus() == Status.SUCCESS);
+    }
+    return request
+      .onErrorReturn(false)
+      .doOnNext(success -> stats.record(intended, success))
+      .then();
+  }
+
+  private void report(long second, boolean measured) {
+    StringBuilder line = new StringBuilder(String.format("%5ds%s", second, measured ? " " : "*"));
+    for (Stats stats : List.of(reads, writes, lists)) {
+      Histogram interval = stats.interval(measured);
+      if (interval.getTotalCount() > 0) {
+        line.append(String.format("  %s %d/s p50 %s p99 %s errors %d", stats.name, interval.getTotalCount(),
+          micros(interval.getValueAtPercentile(50)), micros(interval.getValueAtPercentile(99)), stats.intervalErrors));
+      }
+    }
+    System.out.println(line);
+  }
+
+  private void summary(double seconds) {
+    System.out.printf("%nMeasured %.1f s, latency in microseconds%n", seconds);
+    System.out.printf("%-10s %10s %10s %10s %10s %10s %10s %10s %8s%n",
+      "operation", "count", "rate/s", "p50", "p90", "p99", "p99.9", "max", "errors");
+    for (Stats stats : List.of(reads, writes, lists)) {
+      Histogram total = stats.total;
+      if (total.getTotalCount() == 0) {
+        continue;
+      }
+      System.out.printf("%-10s %10d %10.0f %10s %10s %10s %10s %10s %8d%n", stats.name, total.getTotalCount(),
+        total.getTotalCount() / seconds, micros(total.getValueAtPercentile(50)), micros(total.getValueAtPercentile(90)),
+        micros(total.getValueAtPercentile(99)), micros(total.getValueAtPercentile(99.9)), micros(total.getMaxValue()),
+        stats.totalErrors);
+    }
+  }
+
+  private static String micros(long nanos) {
+    return String.format("%.0f", nanos / 1e3);
+  }
+
+  /**
+   * Задержки и ошибки одного типа запросов.
+   */
+  private static final class Stats {
+    private final String name;
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final LongAdder errors = new LongAdder();
+    private Histogram interval;
+    private long intervalErrors;
+    private long totalErrors;
+
+    private Stats(String name) {
+      this.name = name;
+    }
+
+    void record(long intended, boolean success) {
+      recorder.recordValue(Math.max(0, System.nanoTime() - intended));
+      if (!success) {
+        errors.increment();
+      }
+    }
+
+    /**
+     * Забирает задержки, накопленные с прошлого вызова, и при необходимости добавляет их в итог.
+     */
+    synchronized Histogram interval(boolean measured) {
+      interval = recorder.getIntervalHistogram(interval);
+      intervalErrors = errors.sumThenReset();
+      if (measured) {
+        total.add(interval);
+        totalErrors += intervalErrors;
+      }
+      return interval;
+    }
+  }
+
+  /**
+   * Параметры нагрузки, задаваемые аргументами вида --name=value.
+   *
+   * @param target         адрес сервера
+   * @param channels       количество gRPC-соединений
+   * @param rps            частота запросов; 0 - без расписания, с постоянным числом одновременных запросов
+   * @param concurrency    максимальное количество одновременных запросов
+   * @param warmup         время прогрева, не входящее в итог
+   * @param duration       время измерения
+   * @param users          количество пользователей
+   * @param counters       количество счетчиков
+   * @param prefix         префикс имен счетчиков нагрузки в каталоге
+   * @param distribution   распределение выбора пользователей и счетчиков: uniform или zipfian
+   * @param theta          параметр распределения Ципфа
+   * @param readRatio      доля запросов Get
+   * @param catalogueRatio доля запросов списка каталога
+   * @param byId           адресовать счетчики идентификатором, а не именем
+   * @param delta          величина увеличения
+   */
+  record Options(String target,
+                 int channels,
+                 long rps,
+                 int concurrency,
+                 Duration warmup,
+                 Duration duration,
+                 long users,
+                 int counters,
+                 String prefix,
+                 String distribution,
+                 double theta,
+                 double readRatio,
+                 double catalogueRatio,
+                 boolean byId,
+                 long delta) {
+
+    static Options parse(String[] args) {
+      Map<String, String> values = new HashMap<>();
+      for (String arg : args) {
+        if (!arg.startsWith("--") || !arg.contains("=")) {
+          throw new IllegalArgumentException("Expected --name=value, got " + arg);
+        }
+        values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      Options options = new Options(values.getOrDefault("target", "localhost:30323"),
+        Integer.parseInt(values.getOrDefault("channels", "1")),
+        Long.parseLong(values.getOrDefault("rps", "0")),
+        Integer.parseInt(values.getOrDefault("concurrency", "64")),
+        DurationStyle.detectAndParse(values.getOrDefault("warmup", "10s")),
+        DurationStyle.detectAndParse(values.getOrDefault("duration", "60s")),
+        Long.parseLong(values.getOrDefault("users", "100000")),
+        Integer.parseInt(values.getOrDefault("counters", "100")),
+        values.getOrDefault("prefix", "load-"),
+        values.getOrDefault("distribution", "uniform"),
+        Double.parseDouble(values.getOrDefault("zipf-theta", "0.99")),
+        Double.parseDouble(values.getOrDefault("read-ratio", "0.5")),
+        Double.parseDouble(values.getOrDefault("catalogue-ratio", "0")),
+        Boolean.parseBoolean(values.getOrDefault("by-id", "false")),
+        Long.parseLong(values.getOrDefault("delta", "1")));
+      if (options.readRatio() + options.catalogueRatio() > 1) {
+        throw new IllegalArgumentException("read-ratio and catalogue-ratio must not exceed 1 in total");
+      }
+      return options;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package ru.pastor.templates.named.load;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * Выбор номера ключа нагрузки из диапазона [0, size).
+ */
+public interface Selector {
+
+  /**
+   * Создает выбор с указанным распределением.
+   *
+   * @param distribution распределение: uniform или zipfian
+   * @param size         количество ключей
+   * @param theta        параметр распределения Ципфа, от 0 до 1 не включительно
+   */
+  static Selector of(String distribution, long size, double theta) {
+    if ("uniform".equalsIgnoreCase(distribution)) {
+      return new Uniform(size);
+    }
+    if ("zipfian".equalsIgnoreCase(distribution)) {
+      return new Zipfian(size, theta);
+    }
+    throw new IllegalArgumentException("Unknown distribution: " + distribution);
+  }
+
+  /**
+   * Выбирает номер ключа.
+   *
+   * @param random источник случайных чисел вызывающего потока
+   * @return номер ключа из диапазона [0, size)
+   */
+  long next(RandomGenerator random);
+
+  /**
+   * Равномерное распределение: все ключи выбираются одинаково часто.
+   */
+  final class Uniform implements Selector {
+    private final long size;
+
+    public Uniform(long size) {
+      this.size = Math.max(1, size);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      return random.nextLong(size);
+    }
+  }
+
+  /**
+   * Распределение Ципфа: ключ с номером i выбирается с вероятностью, пропорциональной 1 / (i + 1)^theta,
+   * поэтому небольшая доля ключей получает большую часть обращений, как у реальных пользователей.
+   * Номер вычисляется за постоянное время по методу Грея и др. ("Quickly generating billion-record
+   * synthetic databases"); сумма ряда для нормировки считается один раз при создании.
+   */
+  final class Zipfian implements Selector {
+    private final long size;
+    private final double theta;
+    private final double zeta;
+    private final double alpha;
+    private final double eta;
+
+    public Zipfian(long size, double theta) {
+      if (theta <= 0 || theta >= 1) {
+        throw new IllegalArgumentException("Zipfian theta must be in (0, 1): " + theta);
+      }
+      this.size = Math.max(1, size);
+      this.theta = theta;
+      this.zeta = zeta(this.size, theta);
+      this.alpha = 1 / (1 - theta);
+      this.eta = (1 - Math.pow(2.0 / this.size, 1 - theta)) / (1 - zeta(2, theta) / zeta);
+    }
+
+    @Override
+    public long next(RandomGenerator random) {
+      double u = random.nextDouble();
+      double uz = u * zeta;
+      if (uz < 1) {
+        return 0;
+      }
+      if (uz < 1 + Math.pow(0.5, theta)) {
+        return Math.min(1, size - 1);
+      }
+      return Math.min(size - 1, (long) (size * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    private static double zeta(long n, double theta) {
+      double sum = 0;
+      for (long i = 1; i <= n; i++) {
+        sum += 1 / Math.pow(i, theta);
+      }
+      return sum;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package ru.pastor.templates.named.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.connection.stream.Record;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import ru.pastor.templates.named.service.NamedCountNotification.NamedStream.ChangeValue;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Формирование и разбор записей стрима изменений для каждой стратегии.
+ * Разбирается запись в том виде, в котором ее возвращает чтение стрима:
+ * для SCALAR это поле payload, а не объект, переданный при добавлении.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeStrategyBenchmark {
+
+  @Param({"NUMBER", "STRING", "SCALAR"})
+  private String strategyName;
+
+  private ChangeValue.ChangeStrategy strategy;
+  private Record<String, ?> received;
+  private long userId = 1_234_567L;
+  private long counterId = 42L;
+  private long value = 9_000_000_000L;
+
+  @Setup
+  public void setUp() {
+    strategy = ChangeValue.ChangeStrategy.valueOf(strategyName);
+    received = strategy == ChangeValue.ChangeStrategy.SCALAR ?
+      StreamRecords.mapBacked(Map.of("payload", userId + ":" + counterId + ":" + value))
+        .withStreamKey(NamedCountNotification.NamedStream.STREAM_KEY) :
+      strategy.create(userId, counterId, value);
+  }
+
+  @Benchmark
+  public Record<String, ?> create() {
+    return strategy.create(userId, counterId, value);
+  }
+
+  @Benchmark
+  public Optional<ChangeValue> read() {
+    return strategy.read(received);
+  }
+}
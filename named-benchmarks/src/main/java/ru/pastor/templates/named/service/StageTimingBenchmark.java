@@ -0,0 +1,105 @@
+package ru.pastor.templates.named.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Стоимость измерения этапов увеличения счетчика в {@link NamedCountService.Standard}.
+ * Значения хранятся в памяти, поэтому измеряется только сервис, Reactor и метрики.
+ * Вариант tapped повторяет прежнее измерение через Micrometer.metrics и оставлен как точка отсчета.
+ * Измерение включено по умолчанию (app.service.metrics.enabled), разница timed и untimed - его стоимость.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StageTimingBenchmark {
+
+  private final long userId = 1_234_567L;
+  private final int counterId = 42;
+  private final Mono<Long> value = Mono.just(7L);
+
+  private MeterRegistry registry;
+  private Counters counters;
+  private NamedCountService untimed;
+  private NamedCountService timed;
+
+  @Setup
+  public void setUp() {
+    registry = new SimpleMeterRegistry();
+    counters = new Memory(value);
+    CatalogueIndex catalogue = new CatalogueIndex.Standard(null, null);
+    catalogue.put("benchmark", counterId);
+    untimed = new NamedCountService.Standard(counters, catalogue, null, null);
+    timed = new NamedCountService.Standard(counters, catalogue, null, null, registry);
+  }
+
+  @Benchmark
+  public Long untimed() {
+    return untimed.increment(counterId, userId, 1).block();
+  }
+
+  @Benchmark
+  public Long timed() {
+    return timed.increment(counterId, userId, 1).block();
+  }
+
+  @Benchmark
+  public Long tapped() {
+    return counters.increment(userId, counterId, 1)
+      .name("Counter_stage")
+      .tag("operation", "increment")
+      .tag("stage", "values")
+      .tap(Micrometer.metrics(registry))
+      .block();
+  }
+
+  /**
+   * Значения, которые возвращают заранее созданный Mono и публикуют изменения сами.
+   */
+  private record Memory(Mono<Long> value) implements Counters {
+    @Override
+    public Mono<Long> get(long userId, long counterId) {
+      return value;
+    }
+
+    @Override
+    public Mono<Long> increment(long userId, long counterId, long delta) {
+      return value;
+    }
+
+    @Override
+    public Mono<Long> reset(long userId, long counterId, long value) {
+      return this.value;
+    }
+
+    @Override
+    public Mono<Map<Long, Long>> group(long userId) {
+      return Mono.empty();
+    }
+
+    @Override
+    public boolean publishes() {
+      return true;
+    }
+  }
+}
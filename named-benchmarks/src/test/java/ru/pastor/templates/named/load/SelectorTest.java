@@ -0,0 +1,44 @@
+package ru.pastor.templates.named.load;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SelectorTest {
+
+  @Test
+  void testZipfianStaysInRangeAndFavoursFirstKeys() {
+    Selector selector = Selector.of("zipfian", 1000, 0.99);
+    SplittableRandom random = new SplittableRandom(42);
+    long[] hits = new long[1000];
+    for (int i = 0; i < 100_000; i++) {
+      long key = selector.next(random);
+      assertTrue(key >= 0 && key < 1000, "key out of range: " + key);
+      hits[(int) key]++;
+    }
+
+    long top = 0;
+    for (int i = 0; i < 10; i++) {
+      top += hits[i];
+    }
+    assertTrue(top > 30_000, "first 1% of keys got only " + top + " of 100000 hits");
+  }
+
+  @Test
+  void testUniformStaysInRange() {
+    Selector selector = Selector.of("uniform", 10, 0.99);
+    SplittableRandom random = new SplittableRandom(42);
+    for (int i = 0; i < 10_000; i++) {
+      long key = selector.next(random);
+      assertTrue(key >= 0 && key < 10);
+    }
+  }
+
+  @Test
+  void testUnknownDistributionIsRejected() {
+    assertThrows(IllegalArgumentException.class, () -> Selector.of("pareto", 10, 0.99));
+  }
+}
@@ -0,0 +1,294 @@
+package ru.pastor.templates.named.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Индекс каталога счетчиков: соответствие имени счетчика его идентификатору и обратно.
+ * Каталог небольшой и меняется редко, поэтому поиск выполняется по неизменяемому снимку
+ * без упаковки идентификаторов и без выделения памяти.
+ */
+public interface CatalogueIndex {
+  /**
+   * Идентификатор, возвращаемый для отсутствующего в индексе имени.
+   */
+  int MISSING = -1;
+
+  /**
+   * Получает идентификатор счетчика по имени из текущего снимка.
+   *
+   * @param name имя счетчика
+   * @return идентификатор счетчика или {@link #MISSING}, если имени нет в индексе
+   */
+  int id(String name);
+
+  /**
+   * Получает имя счетчика по идентификатору из текущего снимка.
+   *
+   * @param id идентификатор счетчика
+   * @return имя счетчика или null, если идентификатора нет в индексе
+   */
+  String name(int id);
+
+  /**
+   * Получает идентификатор счетчика по имени, а при его отсутствии в индексе - из источника.
+   * Найденный в источнике идентификатор добавляется в индекс.
+   *
+   * @param name имя счетчика
+   * @return идентификатор счетчика или пустой Mono, если счетчика нет
+   */
+  Mono<Integer> resolve(String name);
+
+  /**
+   * Получает имя счетчика по идентификатору, а при его отсутствии в индексе - из источника.
+   * Найденное в источнике имя добавляется в индекс.
+   *
+   * @param id идентификатор счетчика
+   * @return имя счетчика или пустой Mono, если счетчика нет
+   */
+  Mono<String> resolve(int id);
+
+  /**
+   * Добавляет или заменяет соответствие имени и идентификатора.
+   * Если идентификатор уже был связан с другим именем, прежнее имя удаляется из индекса.
+   *
+   * @param name имя счетчика
+   * @param id   идентификатор счетчика
+   */
+  void put(String name, int id);
+
+  /**
+   * Применяет изменение каталога: связывает имя с идентификатором.
+   * Если идентификатор был связан с другим именем, прежнее имя удаляется из индекса и из источника,
+   * чтобы оно больше не разрешалось в этот счетчик.
+   *
+   * @param name имя счетчика
+   * @param id   идентификатор счетчика
+   * @return пустой Mono, сигнализирующий о завершении операции
+   */
+  Mono<Void> apply(String name, int id);
+
+  /**
+   * Удаляет имя из индекса и из источника.
+   *
+   * @param name имя счетчика
+   * @return пустой Mono, сигнализирующий о завершении операции
+   */
+  Mono<Void> remove(String name);
+
+  /**
+   * Стандартная реализация индекса каталога.
+   * Хранит неизменяемый снимок, который целиком заменяется при каждом изменении:
+   * чтение не требует блокировок, а изменения каталога достаточно редки, чтобы копирование было дешевым.
+   * Предварительная загрузка каталога повторяется, пока не завершится успешно.
+   */
+  @Slf4j
+  final class Standard implements CatalogueIndex {
+    /**
+     * Текущий снимок каталога.
+     */
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.of(Map.of()));
+
+    /**
+     * Источник для имен, отсутствующих в индексе.
+     */
+    private final NamedCache<String, Integer> source;
+
+    /**
+     * Источник для идентификаторов, отсутствующих в индексе, или null, если их не запрашивают.
+     */
+    private final NamedCache<Integer, String> names;
+
+    /**
+     * Создает индекс каталога без источника для идентификаторов.
+     *
+     * @param source источник для имен, отсутствующих в индексе
+     * @param all    источник для предварительной загрузки всего каталога
+     */
+    public Standard(NamedCache<String, Integer> source, NamedCache.All<String, Integer> all) {
+      this(source, null, all);
+    }
+
+    /**
+     * Создает индекс каталога.
+     *
+     * @param source источник для имен, отсутствующих в индексе
+     * @param names  источник для идентификаторов, отсутствующих в индексе
+     * @param all    источник для предварительной загрузки всего каталога
+     */
+    public Standard(NamedCache<String, Integer> source, NamedCache<Integer, String> names, NamedCache.All<String, Integer> all) {
+      this.source = source;
+      this.names = names;
+      if (all != null) {
+        all.all((name, id) -> {
+          put(name, id);
+          return null;
+        })
+          .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+            .maxBackoff(Duration.ofSeconds(30))
+            .doBeforeRetry(signal -> log.warn("Catalogue preload failed: {}", signal.failure().getMessage())))
+          .subscribe();
+      }
+    }
+
+    @Override
+    public int id(String name) {
+      return snapshot.get().id(name);
+    }
+
+    @Override
+    public String name(int id) {
+      return snapshot.get().name(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Имена, отсутствующие в источнике, не запоминаются и при следующем обращении снова запрашиваются у источника.
+     */
+    @Override
+    public Mono<Integer> resolve(String name) {
+      int id = id(name);
+      if (id != MISSING) {
+        return Mono.just(id);
+      }
+      return source.get(name)
+        .doOnNext(loaded -> put(name, loaded));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Без источника для идентификаторов отсутствующий в индексе идентификатор считается неизвестным.
+     */
+    @Override
+    public Mono<String> resolve(int id) {
+      String name = name(id);
+      if (name != null) {
+        return Mono.just(name);
+      }
+      if (names == null) {
+        return Mono.empty();
+      }
+      return names.get(id)
+        .doOnNext(loaded -> put(loaded, id));
+    }
+
+    @Override
+    public void put(String name, int id) {
+      Snapshot current;
+      Snapshot updated;
+      do {
+        current = snapshot.get();
+        if (current.id(name) == id && name.equals(current.name(id))) {
+          return;
+        }
+        Map<String, Integer> entries = current.entries();
+        entries.values().removeIf(existing -> existing == id);
+        entries.put(name, id);
+        updated = Snapshot.of(entries);
+      } while (!snapshot.compareAndSet(current, updated));
+    }
+
+    @Override
+    public Mono<Void> apply(String name, int id) {
+      return Mono.defer(() -> {
+        String previous = name(id);
+        Mono<Void> removal = previous == null || previous.equals(name) ? Mono.empty() : remove(previous);
+        return removal.then(Mono.fromRunnable(() -> put(name, id)));
+      });
+    }
+
+    @Override
+    public Mono<Void> remove(String name) {
+      return Mono.fromRunnable(() -> {
+        Snapshot current;
+        Snapshot updated;
+        do {
+          current = snapshot.get();
+          if (current.id(name) == MISSING) {
+            return;
+          }
+          Map<String, Integer> entries = current.entries();
+          entries.remove(name);
+          updated = Snapshot.of(entries);
+        } while (!snapshot.compareAndSet(current, updated));
+      }).then(source.delete(name));
+    }
+
+    /**
+     * Неизменяемый снимок каталога.
+     * Имена хранятся в хэш-таблице с открытой адресацией и линейным пробированием, идентификаторы - в массиве int.
+     * Для обратного поиска идентификаторы отсортированы и ищутся двоичным поиском.
+     */
+    private static final class Snapshot {
+      private final String[] names;
+      private final int[] ids;
+      private final int mask;
+      private final int[] sortedIds;
+      private final String[] sortedNames;
+
+      private Snapshot(Map<String, Integer> entries) {
+        int capacity = Integer.highestOneBit(Math.max(2, entries.size() * 2) - 1) << 1;
+        this.names = new String[capacity];
+        this.ids = new int[capacity];
+        this.mask = capacity - 1;
+        this.sortedIds = new int[entries.size()];
+        this.sortedNames = new String[entries.size()];
+        int count = 0;
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+          int slot = slot(entry.getKey());
+          while (names[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          names[slot] = entry.getKey();
+          ids[slot] = entry.getValue();
+          sortedIds[count++] = entry.getValue();
+        }
+        Arrays.sort(sortedIds);
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+          sortedNames[Arrays.binarySearch(sortedIds, entry.getValue())] = entry.getKey();
+        }
+      }
+
+      private static Snapshot of(Map<String, Integer> entries) {
+        return new Snapshot(entries);
+      }
+
+      private int slot(String name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+      }
+
+      int id(String name) {
+        for (int slot = slot(name); names[slot] != null; slot = (slot + 1) & mask) {
+          if (names[slot].equals(name)) {
+            return ids[slot];
+          }
+        }
+        return MISSING;
+      }
+
+      String name(int id) {
+        int index = Arrays.binarySearch(sortedIds, id);
+        return index < 0 ? null : sortedNames[index];
+      }
+
+      /**
+       * Возвращает изменяемую копию соответствий снимка.
+       */
+      Map<String, Integer> entries() {
+        Map<String, Integer> entries = new HashMap<>(sortedIds.length * 2);
+        for (int i = 0; i < sortedIds.length; i++) {
+          entries.put(sortedNames[i], sortedIds[i]);
+        }
+        return entries;
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package ru.pastor.templates.named.cache;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Автомат размыкания цепи для обращений к внешнему хранилищу.
+ * После заданного количества ошибок подряд цепь размыкается, и обращения к хранилищу не выполняются
+ * в течение заданного времени. Затем пропускается одно пробное обращение: при успехе цепь замыкается,
+ * при ошибке снова размыкается. Если пробное обращение не завершилось за то же время (например, его отменили),
+ * пропускается следующее.
+ */
+public final class CircuitBreaker {
+  /**
+   * Текущее состояние цепи.
+   */
+  private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+  /**
+   * Количество ошибок подряд в замкнутом состоянии.
+   */
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * Количество ошибок подряд, после которого цепь размыкается.
+   */
+  private final int threshold;
+
+  /**
+   * Время в наносекундах, в течение которого цепь остается разомкнутой.
+   */
+  private final long openNanos;
+
+  /**
+   * Источник текущего времени в наносекундах.
+   */
+  private final LongSupplier clock;
+
+  /**
+   * Время размыкания цепи или выдачи последнего пробного обращения в наносекундах.
+   */
+  private final AtomicLong openedAt = new AtomicLong();
+
+  /**
+   * Создает автомат размыкания цепи.
+   *
+   * @param threshold количество ошибок подряд, после которого цепь размыкается
+   * @param openFor   время, в течение которого цепь остается разомкнутой
+   */
+  public CircuitBreaker(int threshold, Duration openFor) {
+    this(threshold, openFor, System::nanoTime);
+  }
+
+  CircuitBreaker(int threshold, Duration openFor, LongSupplier clock) {
+    this.threshold = Math.max(1, threshold);
+    this.openNanos = openFor.toNanos();
+    this.clock = clock;
+  }
+
+  /**
+   * Возвращает текущее состояние цепи.
+   */
+  public State state() {
+    return state.get();
+  }
+
+  /**
+   * Проверяет, можно ли обратиться к хранилищу.
+   * В разомкнутом состоянии по истечении времени размыкания разрешает ровно одно пробное обращение.
+   * Пробное обращение, о результате которого не сообщили за время размыкания, считается потерянным,
+   * и разрешается новое: иначе отмененная проба оставила бы цепь полуразомкнутой навсегда.
+   *
+   * @return true, если обращение разрешено
+   */
+  public boolean allows() {
+    State current = state.get();
+    if (current == State.CLOSED) {
+      return true;
+    }
+    long since = openedAt.get();
+    long now = clock.getAsLong();
+    return now - since >= openNanos &&
+      openedAt.compareAndSet(since, now) &&
+      state.compareAndSet(current, State.HALF_OPEN);
+  }
+
+  /**
+   * Отмечает успешное обращение.
+   *
+   * @return true, если обращение замкнуло ранее разомкнутую цепь
+   */
+  public boolean success() {
+    failures.set(0);
+    return state.get() != State.CLOSED && state.getAndSet(State.CLOSED) != State.CLOSED;
+  }
+
+  /**
+   * Отмечает неудачное обращение.
+   *
+   * @return true, если обращение разомкнуло цепь
+   */
+  public boolean failure() {
+    if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+      openedAt.set(clock.getAsLong());
+      return true;
+    }
+    if (failures.incrementAndGet() >= threshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+      openedAt.set(clock.getAsLong());
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Состояние цепи.
+   */
+  public enum State {
+    /**
+     * Обращения к хранилищу выполняются.
+     */
+    CLOSED,
+    /**
+     * Обращения к хранилищу не выполняются.
+     */
+    OPEN,
+    /**
+     * Выполняется пробное обращение к хранилищу.
+     */
+    HALF_OPEN
+  }
+}
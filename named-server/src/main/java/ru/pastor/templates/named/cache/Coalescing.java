@@ -0,0 +1,213 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш, объединяющий одновременные увеличения одного ключа в одну команду делегата.
+ * Увеличения, пришедшие в течение окна объединения, суммируются и отправляются одним вызовом
+ * {@link NamedCache#increment}. Каждый вызывающий получает собственное значение после увеличения,
+ * вычисленное из общего результата так, как если бы увеличения выполнялись по очереди.
+ * Остальные операции передаются делегату без изменений.
+ *
+ * @param <K> тип ключа
+ */
+@Slf4j
+public final class Coalescing<K> implements NamedCache<K, Long> {
+  /**
+   * Делегат, которому передаются объединенные увеличения.
+   */
+  private final NamedCache<K, Long> delegate;
+
+  /**
+   * Окно, в течение которого увеличения одного ключа накапливаются перед отправкой.
+   */
+  private final Duration window;
+
+  /**
+   * Планировщик отправки накопленных увеличений.
+   */
+  private final Scheduler scheduler;
+
+  /**
+   * Открытые пакеты увеличений по ключам.
+   */
+  private final ConcurrentMap<K, Batch> batches = new ConcurrentHashMap<>();
+
+  /**
+   * Количество увеличений, отправленных в составе чужой команды.
+   */
+  private final Counter coalesced;
+
+  /**
+   * Создает кэш, объединяющий увеличения.
+   *
+   * @param name     имя кэша для метрик
+   * @param window   окно объединения увеличений
+   * @param registry реестр метрик
+   * @param delegate делегат, выполняющий увеличения
+   */
+  public Coalescing(String name, Duration window, MeterRegistry registry, NamedCache<K, Long> delegate) {
+    this(name, window, registry, delegate, Schedulers.parallel());
+  }
+
+  Coalescing(String name, Duration window, MeterRegistry registry, NamedCache<K, Long> delegate, Scheduler scheduler) {
+    this.delegate = delegate;
+    this.window = window;
+    this.scheduler = scheduler;
+    this.coalesced = Counter.builder("Cache_" + name + "_coalesced_increment_count")
+      .register(registry);
+  }
+
+  @Override
+  public Mono<Long> get(K key) {
+    return delegate.get(key);
+  }
+
+  @Override
+  public Mono<Void> delete(K key) {
+    return delegate.delete(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Добавляет увеличение в открытый пакет ключа или открывает новый пакет,
+   * который будет отправлен делегату по истечении окна объединения.
+   */
+  @Override
+  public Mono<Long> increment(K key, Long value) {
+    return Mono.create(sink -> {
+      while (true) {
+        Batch batch = batches.get(key);
+        if (batch == null) {
+          Batch created = new Batch();
+          batch = batches.putIfAbsent(key, created);
+          if (batch == null) {
+            batch = created;
+            scheduler.schedule(() -> flush(key, created), window.toNanos(), TimeUnit.NANOSECONDS);
+          }
+        }
+        if (batch.add(value, sink)) {
+          return;
+        }
+        flush(key, batch);
+      }
+    });
+  }
+
+  @Override
+  public Mono<Long> update(K key, Long value) {
+    return delegate.update(key, value);
+  }
+
+  @Override
+  public Mono<Long> reset(K key, Long value) {
+    return delegate.reset(key, value);
+  }
+
+  @Override
+  public Mono<Map<K, Long>> group(K group) {
+    return delegate.group(group);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Возвращает признак делегата. Если делегат публикует значение скриптом увеличения, публикуется
+   * только итоговое значение пакета: стрим передает абсолютные значения, поэтому промежуточные не нужны.
+   * Если не публикует, значение публикует сервис для каждого вызывающего, то есть промежуточные значения
+   * пакета тоже попадают в стрим.
+   */
+  @Override
+  public boolean publishes() {
+    return delegate.publishes();
+  }
+
+  @Override
+  public void evict(K key) {
+    delegate.evict(key);
+  }
+
+  /**
+   * Закрывает пакет и отправляет накопленную сумму делегату.
+   * Повторный вызов для уже закрытого пакета ничего не делает.
+   */
+  private void flush(K key, Batch batch) {
+    batches.remove(key, batch);
+    List<Pending> pending = batch.close();
+    if (pending.isEmpty()) {
+      return;
+    }
+    long sum = 0;
+    for (Pending p : pending) {
+      sum += p.delta;
+    }
+    coalesced.increment(pending.size() - 1);
+    long total = sum;
+    delegate.increment(key, total)
+      .subscribe(result -> {
+        long current = result - total;
+        for (Pending p : pending) {
+          current += p.delta;
+          p.sink.success(current);
+        }
+      }, error -> {
+        log.error("Error incrementing coalesced key {} by {}: {}", key, total, error.getMessage());
+        pending.forEach(p -> p.sink.error(error));
+      }, () -> pending.forEach(p -> p.sink.success()));
+  }
+
+  /**
+   * Увеличение, ожидающее отправки.
+   */
+  private record Pending(long delta, MonoSink<Long> sink) {
+  }
+
+  /**
+   * Пакет увеличений одного ключа, накапливаемых в течение окна объединения.
+   */
+  private static final class Batch {
+    private final List<Pending> pending = new ArrayList<>();
+    private long sum;
+    private boolean closed;
+
+    /**
+     * Добавляет увеличение в пакет.
+     *
+     * @return false, если пакет уже закрыт или сумма не помещается в значение делегата
+     */
+    synchronized boolean add(long delta, MonoSink<Long> sink) {
+      if (closed || sum > Long.MAX_VALUE - delta) {
+        return false;
+      }
+      sum += delta;
+      pending.add(new Pending(delta, sink));
+      return true;
+    }
+
+    /**
+     * Закрывает пакет для новых увеличений.
+     *
+     * @return накопленные увеличения или пустой список, если пакет уже был закрыт
+     */
+    synchronized List<Pending> close() {
+      if (closed) {
+        return List.of();
+      }
+      closed = true;
+      return pending;
+    }
+  }
+}
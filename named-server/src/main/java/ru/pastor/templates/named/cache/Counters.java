@@ -0,0 +1,105 @@
+package ru.pastor.templates.named.cache;
+
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Значения счетчиков пользователей, адресуемые идентификаторами пользователя и счетчика.
+ * Значения 64-битные на всем пути от Redis до ответа сервиса, поэтому не переполняются на 2^31.
+ * Ключи кэша формируются внутри реализации: вызывающему не нужно знать их формат.
+ */
+public interface Counters {
+
+  /**
+   * Получает значение счетчика пользователя.
+   *
+   * @param userId    идентификатор пользователя
+   * @param counterId идентификатор счетчика
+   * @return значение счетчика или пустой Mono, если значения нет
+   */
+  Mono<Long> get(long userId, long counterId);
+
+  /**
+   * Увеличивает значение счетчика пользователя.
+   *
+   * @param userId    идентификатор пользователя
+   * @param counterId идентификатор счетчика
+   * @param delta     величина увеличения
+   * @return значение после увеличения
+   */
+  Mono<Long> increment(long userId, long counterId, long delta);
+
+  /**
+   * Устанавливает значение счетчика пользователя.
+   *
+   * @param userId    идентификатор пользователя
+   * @param counterId идентификатор счетчика
+   * @param value     новое значение
+   * @return установленное значение
+   */
+  Mono<Long> reset(long userId, long counterId, long value);
+
+  /**
+   * Получает значения всех счетчиков пользователя одним запросом.
+   *
+   * @param userId идентификатор пользователя
+   * @return значения по идентификаторам счетчиков или пустой Mono, если хранилище не читает их одним запросом
+   */
+  Mono<Map<Long, Long>> group(long userId);
+
+  /**
+   * Возвращает true, если увеличение само публикует новое значение в стрим изменений.
+   */
+  boolean publishes();
+
+  /**
+   * Стандартная реализация поверх кэша значений с ключами вида "named:userId:counterId".
+   */
+  final class Standard implements Counters {
+    /**
+     * Кэш значений счетчиков.
+     */
+    private final NamedCache<String, Long> values;
+
+    /**
+     * Создает значения счетчиков поверх кэша.
+     *
+     * @param values кэш значений счетчиков
+     */
+    public Standard(NamedCache<String, Long> values) {
+      this.values = values;
+    }
+
+    @Override
+    public Mono<Long> get(long userId, long counterId) {
+      return values.get(Keys.of(userId, counterId));
+    }
+
+    @Override
+    public Mono<Long> increment(long userId, long counterId, long delta) {
+      return values.increment(Keys.of(userId, counterId), delta);
+    }
+
+    @Override
+    public Mono<Long> reset(long userId, long counterId, long value) {
+      return values.reset(Keys.of(userId, counterId), value);
+    }
+
+    @Override
+    public Mono<Map<Long, Long>> group(long userId) {
+      return values.group(Keys.group(userId))
+        .map(group -> {
+          Map<Long, Long> result = new HashMap<>(group.size() * 2);
+          group.forEach((key, value) -> result.put(Keys.counterId(key), value));
+          return result;
+        });
+    }
+
+    @Override
+    public boolean publishes() {
+      return values.publishes();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package ru.pastor.templates.named.cache;
+
+import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.repository.CounterRepository;
+import ru.pastor.templates.named.repository.entity.CounterEntity;
+
+import java.util.List;
+
+/**
+ * Значения счетчиков, читаемые и изменяемые напрямую в базе данных.
+ * Используется вместо Redis, пока Redis недоступен: каждое увеличение выполняется одним
+ * атомарным запросом, поэтому одновременные увеличения разных узлов не теряются.
+ */
+public final class Database implements NamedCache<String, Long> {
+  /**
+   * Репозиторий значений счетчиков.
+   */
+  private final CounterRepository repository;
+
+  /**
+   * Создает значения счетчиков поверх репозитория.
+   *
+   * @param repository репозиторий значений счетчиков
+   */
+  public Database(CounterRepository repository) {
+    this.repository = repository;
+  }
+
+  @Override
+  public Mono<Long> get(String key) {
+    return repository.get(Keys.counterId(key), Keys.userId(key))
+      .map(CounterEntity::value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Значения счетчиков в базе данных не удаляются.
+   */
+  @Override
+  public Mono<Void> delete(String key) {
+    return Mono.empty();
+  }
+
+  @Override
+  public Mono<Long> increment(String key, Long value) {
+    return repository.increment(Keys.counterId(key), Keys.userId(key), value);
+  }
+
+  @Override
+  public Mono<Long> update(String key, Long value) {
+    return repository.upsertAll(List.of(new CounterRepository.Change(Keys.counterId(key), Keys.userId(key), value)))
+      .thenReturn(value);
+  }
+
+  @Override
+  public Mono<Long> reset(String key, Long value) {
+    return update(key, value);
+  }
+}
@@ -0,0 +1,365 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Кэш, переключающийся на резервное хранилище, пока основное недоступно.
+ * Ошибки обращений к основному хранилищу учитываются автоматом размыкания цепи: обращение, завершившееся
+ * ошибкой, и все обращения при разомкнутой цепи выполняются в резервном хранилище. Удаление
+ * при разомкнутой цепи завершается ошибкой: резервное хранилище значения не удаляет.
+ * <p>
+ * Изменения, выполненные в резервном хранилище, запоминаются по ключам и после замыкания цепи
+ * применяются к основному хранилищу так же, как были выполнены: увеличения - увеличением на их сумму,
+ * сброс и запись - записью последнего значения с последующими увеличениями. Значения основного хранилища
+ * не заменяются значениями резервного: резервное хранилище отстает от основного на очередь записи
+ * в базу, и такая замена откатила бы увеличения, еще не записанные в базу, и увеличения других узлов,
+ * уже вернувшихся к основному хранилищу. Если основное хранилище потеряло ключ, он сначала записывается
+ * значением из резервного хранилища командой SET NX, и в этом случае увеличения повторно не применяются.
+ * <p>
+ * Если задан журнал, увеличения при недоступном основном хранилище записываются в него, а не в резервное
+ * хранилище, и после восстановления воспроизводятся в основном. Возвращаемое значение в этом случае
+ * оценивается как значение из резервного хранилища плюс принятые в журнал увеличения.
+ * Пока журнал заполнен, увеличения выполняются в резервном хранилище. Сброс и запись в журнал не попадают:
+ * после них увеличения ключа до восстановления выполняются в резервном хранилище и прибавляются к записанному
+ * значению. Журнал воспроизводится до применения изменений резервного хранилища, поэтому записанное значение
+ * заменяет увеличения, принятые в журнал до сброса. Изменения резервного хранилища хранятся в памяти
+ * и при перезапуске узла теряются, как и еще не воспроизведенный сброс.
+ * <p>
+ * Изменение, завершившееся в основном хранилище ошибкой по таймауту, могло быть в нем выполнено.
+ * Такое увеличение после восстановления может быть учтено дважды.
+ */
+@Slf4j
+public final class Fallback implements NamedCache<String, Long> {
+  /**
+   * Количество одновременных переносов ключей в основное хранилище после восстановления.
+   */
+  private static final int RESEED_CONCURRENCY = 16;
+
+  /**
+   * Количество одновременно воспроизводимых записей журнала.
+   */
+  private static final int REPLAY_CONCURRENCY = 64;
+
+  /**
+   * Основное хранилище.
+   */
+  private final NamedCache<String, Long> primary;
+
+  /**
+   * Резервное хранилище.
+   */
+  private final NamedCache<String, Long> secondary;
+
+  /**
+   * Журнал увеличений или null, если увеличения выполняются в резервном хранилище.
+   */
+  private final Journal journal;
+
+  /**
+   * Оценки значений ключей, увеличения которых приняты в журнал.
+   */
+  private final Map<String, Long> journaled = new ConcurrentHashMap<>();
+
+  /**
+   * Автомат размыкания цепи обращений к основному хранилищу.
+   */
+  private final CircuitBreaker breaker;
+
+  /**
+   * Изменения, выполненные в резервном хранилище и еще не примененные к основному, по ключам.
+   */
+  private final Map<String, Change> changes = new ConcurrentHashMap<>();
+
+  /**
+   * Выполняется ли перенос ключей в основное хранилище.
+   */
+  private final AtomicBoolean reseeding = new AtomicBoolean();
+
+  /**
+   * Количество изменений, выполненных в резервном хранилище.
+   */
+  private final Counter fallbacks;
+
+  /**
+   * Создает кэш с резервным хранилищем.
+   *
+   * @param name      имя кэша для метрик
+   * @param primary   основное хранилище
+   * @param secondary резервное хранилище
+   * @param breaker   автомат размыкания цепи обращений к основному хранилищу
+   * @param registry  реестр метрик
+   */
+  public Fallback(String name,
+                  NamedCache<String, Long> primary,
+                  NamedCache<String, Long> secondary,
+                  CircuitBreaker breaker,
+                  MeterRegistry registry) {
+    this(name, primary, secondary, null, breaker, registry);
+  }
+
+  /**
+   * Создает кэш с резервным хранилищем и журналом увеличений.
+   *
+   * @param name      имя кэша для метрик
+   * @param primary   основное хранилище
+   * @param secondary резервное хранилище
+   * @param journal   журнал увеличений или null
+   * @param breaker   автомат размыкания цепи обращений к основному хранилищу
+   * @param registry  реестр метрик
+   */
+  public Fallback(String name,
+                  NamedCache<String, Long> primary,
+                  NamedCache<String, Long> secondary,
+                  Journal journal,
+                  CircuitBreaker breaker,
+                  MeterRegistry registry) {
+    this.primary = primary;
+    this.secondary = secondary;
+    this.journal = journal;
+    this.breaker = breaker;
+    this.fallbacks = Counter.builder("Cache_" + name + "_fallback_count")
+      .register(registry);
+    Gauge.builder("Cache_" + name + "_circuit_state", () -> breaker.state().ordinal())
+      .register(registry);
+    Gauge.builder("Cache_" + name + "_dirty_count", changes::size)
+      .register(registry);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Пока цепь разомкнута или основное хранилище вернуло ошибку, значение читается из резервного хранилища.
+   */
+  @Override
+  public Mono<Long> get(String key) {
+    return Mono.defer(() -> {
+      if (!breaker.allows()) {
+        return secondary.get(key);
+      }
+      return primary.get(key)
+        .doOnSuccess(value -> succeeded())
+        .onErrorResume(e -> {
+          failed(e);
+          return secondary.get(key);
+        });
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   * Пока цепь разомкнута, удаление не выполняется и завершается ошибкой.
+   */
+  @Override
+  public Mono<Void> delete(String key) {
+    return Mono.defer(() -> {
+      if (!breaker.allows()) {
+        return Mono.error(new IllegalStateException("Primary store is unavailable, key " + key + " is not deleted"));
+      }
+      return primary.delete(key)
+        .doOnSuccess(value -> succeeded())
+        .doOnError(this::failed);
+    });
+  }
+
+  @Override
+  public Mono<Long> increment(String key, Long value) {
+    return change(key, store -> store.increment(key, value), () -> journal(key, value), new Change(value, false));
+  }
+
+  @Override
+  public Mono<Long> update(String key, Long value) {
+    return change(key, store -> store.update(key, value), Mono::empty, new Change(value, true));
+  }
+
+  @Override
+  public Mono<Long> reset(String key, Long value) {
+    return change(key, store -> store.reset(key, value), Mono::empty, new Change(value, true));
+  }
+
+  /**
+   * {@inheritDoc}
+   * Пока цепь разомкнута или основное хранилище вернуло ошибку, возвращает пустой Mono:
+   * значения группы читаются по одному из резервного хранилища.
+   */
+  @Override
+  public Mono<Map<String, Long>> group(String group) {
+    return Mono.defer(() -> {
+      if (!breaker.allows()) {
+        return Mono.empty();
+      }
+      return primary.group(group)
+        .doOnSuccess(value -> succeeded())
+        .onErrorResume(e -> {
+          failed(e);
+          return Mono.empty();
+        });
+    });
+  }
+
+  @Override
+  public boolean publishes() {
+    return primary.publishes();
+  }
+
+  @Override
+  public void evict(String key) {
+    primary.evict(key);
+  }
+
+  /**
+   * Выполняет изменение в основном хранилище, если цепь это разрешает, иначе - в журнале или резервном хранилище.
+   *
+   * @param journaling запись изменения в журнал; пустой Mono, если изменение не может быть записано в журнал
+   * @param change     изменение для применения к основному хранилищу после восстановления
+   */
+  private Mono<Long> change(String key,
+                               Function<NamedCache<String, Long>, Mono<Long>> operation,
+                               Supplier<Mono<Long>> journaling,
+                               Change change) {
+    return Mono.defer(() -> {
+      if (!breaker.allows()) {
+        return fallback(key, operation, journaling, change);
+      }
+      return operation.apply(primary)
+        .doOnSuccess(value -> succeeded())
+        .onErrorResume(e -> {
+          failed(e);
+          return fallback(key, operation, journaling, change);
+        });
+    });
+  }
+
+  /**
+   * Отмечает успешное обращение к основному хранилищу и переносит в него накопленные изменения.
+   */
+  private void succeeded() {
+    if (breaker.success()) {
+      log.info("Primary store is available again, reapplying changes of {} keys", changes.size());
+    }
+    if (!changes.isEmpty() || journal != null && journal.pending() > 0) {
+      reseed();
+    }
+  }
+
+  /**
+   * Отмечает ошибку обращения к основному хранилищу.
+   */
+  private void failed(Throwable e) {
+    if (breaker.failure()) {
+      log.warn("Primary store is unavailable, switching to fallback: {}", e.getMessage());
+    }
+  }
+
+  private Mono<Long> fallback(String key,
+                                 Function<NamedCache<String, Long>, Mono<Long>> operation,
+                                 Supplier<Mono<Long>> journaling,
+                                 Change change) {
+    fallbacks.increment();
+    return journaling.get()
+      .switchIfEmpty(Mono.defer(() -> operation.apply(secondary)
+        .doOnSuccess(value -> {
+          changes.merge(key, change, Change::then);
+          if (change.absolute()) {
+            journaled.remove(key);
+          }
+        })));
+  }
+
+  /**
+   * Записывает увеличение в журнал и возвращает оценку нового значения.
+   * Начальное значение ключа читается из резервного хранилища один раз за время недоступности.
+   *
+   * @return оценка нового значения или пустой Mono, если журнала нет, он заполнен или ключ был сброшен
+   */
+  private Mono<Long> journal(String key, Long delta) {
+    Change pending = changes.get(key);
+    if (journal == null || pending != null && pending.absolute()) {
+      return Mono.empty();
+    }
+    Mono<Long> initial = journaled.containsKey(key) ? Mono.just(0L) : secondary.get(key)
+      .onErrorResume(e -> Mono.empty())
+      .defaultIfEmpty(0L);
+    return initial.flatMap(value -> {
+      if (!journal.append(Keys.userId(key), Keys.counterId(key), delta)) {
+        return Mono.empty();
+      }
+      journaled.putIfAbsent(key, value);
+      return Mono.just(journaled.merge(key, delta, Long::sum));
+    });
+  }
+
+  /**
+   * Воспроизводит в основном хранилище журнал увеличений, а затем применяет к нему изменения,
+   * выполненные в резервном хранилище. Одновременно выполняется не более одного переноса.
+   * Изменения, выполненные во время переноса, и изменения, которые не удалось применить,
+   * применяются после следующего успешного изменения в основном хранилище.
+   */
+  private void reseed() {
+    if (!reseeding.compareAndSet(false, true)) {
+      return;
+    }
+    Mono<Long> replay = journal == null ? Mono.just(0L) : Mono.defer(() -> {
+      journaled.clear();
+      return journal.replay(entry -> primary.increment(Keys.of(entry.userId(), entry.counterId()), entry.delta()),
+        REPLAY_CONCURRENCY);
+    });
+    replay
+      .flatMap(replayed -> Flux.fromIterable(List.copyOf(changes.keySet()))
+        .flatMap(key -> {
+          Change change = changes.remove(key);
+          return change == null ? Mono.empty() : apply(key, change)
+            .doOnError(e -> changes.merge(key, change, (later, earlier) -> Change.then(earlier, later)))
+            .onErrorResume(e -> Mono.empty());
+        }, RESEED_CONCURRENCY)
+        .count()
+        .doOnNext(reapplied -> log.info("Replayed {} journaled increments and reapplied changes of {} keys to primary store",
+          replayed, reapplied)))
+      .doOnError(e -> log.warn("Journal replay is interrupted: {}", e.getMessage()))
+      .onErrorResume(e -> Mono.empty())
+      .doFinally(signal -> reseeding.set(false))
+      .subscribe();
+  }
+
+  /**
+   * Применяет к основному хранилищу изменение ключа, выполненное в резервном.
+   * Запись выполняется как есть. Перед увеличением ключ, потерянный основным хранилищем, записывается
+   * значением из резервного хранилища, которое уже содержит увеличение.
+   */
+  private Mono<Long> apply(String key, Change change) {
+    if (change.absolute()) {
+      return primary.update(key, change.value());
+    }
+    return secondary.get(key)
+      .flatMap(value -> primary.putIfAbsent(key, value)
+        .filter(created -> created)
+        .map(created -> value))
+      .switchIfEmpty(Mono.defer(() -> primary.increment(key, change.value())));
+  }
+
+  /**
+   * Изменение ключа, выполненное в резервном хранилище.
+   *
+   * @param value    величина увеличения или записанное значение
+   * @param absolute true, если значение записано, а не увеличено
+   */
+  private record Change(long value, boolean absolute) {
+    /**
+     * Объединяет изменение с последующим: запись заменяет предыдущие изменения,
+     * а увеличение прибавляется к предыдущему изменению.
+     */
+    static Change then(Change earlier, Change later) {
+      return later.absolute ? later : new Change(earlier.value + later.value, earlier.absolute);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Кэш, согласующий локальные кэши узлов через канал инвалидации.
+ * Измененные ключи накапливаются и раз в заданный интервал публикуются в канал одним сообщением
+ * с идентификатором узла, а все остальные узлы, получив сообщение, удаляют эти ключи из своего
+ * локального кэша. Следующее чтение на них загрузит актуальное значение из общего хранилища.
+ * Изменение не ждет публикации, поэтому не добавляет запроса к Redis, а ключ, измененный несколько
+ * раз за интервал, публикуется один раз. Другие узлы видят изменение с задержкой не больше интервала.
+ * Собственные сообщения узла пропускаются: его локальный кэш уже обновлен самим изменением.
+ *
+ * @param <V> тип значения
+ */
+@Slf4j
+public final class Invalidating<V> implements NamedCache<String, V> {
+  /**
+   * Разделитель идентификатора узла и ключа в сообщении.
+   */
+  private static final char SEPARATOR = ' ';
+
+  /**
+   * Наибольшее количество ключей в одном сообщении.
+   */
+  private static final int MAX_KEYS = 1000;
+
+  /**
+   * Локальный кэш узла.
+   */
+  private final NamedCache<String, V> local;
+
+  /**
+   * Идентификатор текущего узла.
+   */
+  private final String node;
+
+  /**
+   * Публикация сообщения в канал инвалидации.
+   */
+  private final Function<String, Mono<?>> publisher;
+
+  /**
+   * Ключи, измененные с последней публикации.
+   */
+  private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Подписки на канал инвалидации и на периодическую публикацию.
+   */
+  private final Disposable subscription;
+
+  /**
+   * Количество ключей, удаленных из локального кэша по сообщениям других узлов.
+   */
+  private final Counter evicted;
+
+  /**
+   * Создает кэш с инвалидацией между узлами и подписывается на канал.
+   *
+   * @param name      имя кэша для метрик
+   * @param node      идентификатор текущего узла, уникальный среди узлов
+   * @param local     локальный кэш узла
+   * @param messages  сообщения канала инвалидации от всех узлов
+   * @param publisher публикация сообщения в канал инвалидации
+   * @param window    интервал публикации измененных ключей
+   * @param registry  реестр метрик
+   */
+  public Invalidating(String name,
+                      String node,
+                      NamedCache<String, V> local,
+                      Flux<String> messages,
+                      Function<String, Mono<?>> publisher,
+                      Duration window,
+                      MeterRegistry registry) {
+    this.local = local;
+    this.node = node;
+    this.publisher = publisher;
+    this.evicted = Counter.builder("Cache_" + name + "_invalidated_count")
+      .register(registry);
+    this.subscription = Disposables.composite(
+      messages.subscribe(this::receive,
+        throwable -> log.error("Invalidation channel of {} is closed", name, throwable)),
+      Flux.interval(window)
+        .onBackpressureDrop()
+        .concatMap(tick -> flush())
+        .subscribe());
+  }
+
+  @Override
+  public Mono<V> get(String key) {
+    return local.get(key);
+  }
+
+  @Override
+  public Mono<Void> delete(String key) {
+    return local.delete(key)
+      .doOnSuccess(result -> changed.add(key));
+  }
+
+  @Override
+  public Mono<V> increment(String key, V value) {
+    return local.increment(key, value)
+      .doOnNext(result -> changed.add(key));
+  }
+
+  @Override
+  public Mono<V> update(String key, V value) {
+    return local.update(key, value)
+      .doOnNext(result -> changed.add(key));
+  }
+
+  @Override
+  public Mono<V> reset(String key, V value) {
+    return local.reset(key, value)
+      .doOnNext(result -> changed.add(key));
+  }
+
+  @Override
+  public Mono<Map<String, V>> group(String group) {
+    return local.group(group);
+  }
+
+  @Override
+  public boolean publishes() {
+    return local.publishes();
+  }
+
+  @Override
+  public void evict(String key) {
+    local.evict(key);
+  }
+
+  /**
+   * Отписывается от канала инвалидации.
+   */
+  public void close() {
+    subscription.dispose();
+  }
+
+  /**
+   * Публикует ключи, измененные с последней публикации, сообщениями не более чем по {@link #MAX_KEYS} ключей.
+   * Ключ удаляется из измененных до публикации, поэтому изменение во время публикации будет опубликовано
+   * следующей. Ошибка публикации не отменяет уже выполненные изменения: другие узлы в худшем случае
+   * прочитают устаревшее значение до истечения срока его жизни.
+   */
+  Mono<Void> flush() {
+    return Flux.defer(() -> {
+      List<String> messages = new ArrayList<>();
+      StringBuilder message = null;
+      int keys = 0;
+      Iterator<String> iterator = changed.iterator();
+      while (iterator.hasNext()) {
+        String key = iterator.next();
+        iterator.remove();
+        if (message == null || keys == MAX_KEYS) {
+          if (message != null) {
+            messages.add(message.toString());
+          }
+          message = new StringBuilder(node);
+          keys = 0;
+        }
+        message.append(SEPARATOR).append(key);
+        keys++;
+      }
+      if (message != null) {
+        messages.add(message.toString());
+      }
+      return Flux.fromIterable(messages);
+    })
+      .concatMap(message -> Mono.defer(() -> publisher.apply(message))
+        .doOnError(throwable -> log.warn("Can't publish invalidation: {}", throwable.getMessage()))
+        .onErrorResume(throwable -> Mono.empty()))
+      .then();
+  }
+
+  private void receive(String message) {
+    int separator = message.indexOf(SEPARATOR);
+    if (separator < 0 || separator == node.length() && message.startsWith(node)) {
+      return;
+    }
+    while (separator >= 0) {
+      int next = message.indexOf(SEPARATOR, separator + 1);
+      String key = next < 0 ? message.substring(separator + 1) : message.substring(separator + 1, next);
+      if (!key.isEmpty()) {
+        local.evict(key);
+        evicted.increment();
+      }
+      separator = next;
+    }
+  }
+}
@@ -0,0 +1,480 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Журнал увеличений на локальном диске, принятых, пока Redis недоступен.
+ * Журнал состоит из сегментов фиксированного размера, отображенных в память. Запись добавляется в конец
+ * текущего сегмента без системных вызовов; заполненный сегмент закрывается и начинается следующий.
+ * Общий размер журнала ограничен количеством сегментов: в заполненный журнал запись не добавляется.
+ * <p>
+ * Запись имеет фиксированный размер и содержит статус, контрольную сумму CRC32C и данные увеличения.
+ * Статус записывается последним, поэтому незавершенная запись не считается принятой, а запись,
+ * поврежденная на диске, обнаруживается по контрольной сумме и пропускается.
+ * Воспроизведенные записи помечаются в сегменте, поэтому после перезапуска они не применяются повторно,
+ * а полностью воспроизведенный сегмент удаляется.
+ * <p>
+ * Данные сбрасываются на диск при закрытии сегмента: после остановки процесса записи сохраняются,
+ * после сбоя операционной системы могут быть потеряны записи последнего сегмента.
+ * <p>
+ * Запись выполняется в потоках цикла событий, поэтому файловые операции вынесены из нее: следующий сегмент
+ * создается заранее, а сброс закрытого сегмента на диск, отображение и удаление сегментов при воспроизведении
+ * выполняются в отдельном планировщике. Если заранее созданного сегмента нет, запись не принимается.
+ */
+@Slf4j
+public final class Journal implements Closeable {
+  /**
+   * Размер записи в байтах.
+   */
+  static final int RECORD_SIZE = 40;
+
+  /**
+   * Статус свободного места: записи начиная с него нет.
+   */
+  private static final byte EMPTY = 0;
+
+  /**
+   * Статус записи, ожидающей воспроизведения.
+   */
+  private static final byte PENDING = 1;
+
+  /**
+   * Статус воспроизведенной записи.
+   */
+  private static final byte REPLAYED = 2;
+
+  /**
+   * Статус записи с неверной контрольной суммой.
+   */
+  private static final byte CORRUPTED = 3;
+
+  /**
+   * Смещение контрольной суммы в записи.
+   */
+  private static final int CRC_OFFSET = 4;
+
+  /**
+   * Смещение данных увеличения в записи.
+   */
+  private static final int DATA_OFFSET = 8;
+
+  /**
+   * Размер данных увеличения: пользователь, счетчик, величина и время.
+   */
+  private static final int DATA_SIZE = 32;
+
+  /**
+   * Расширение файлов сегментов.
+   */
+  private static final String SUFFIX = ".journal";
+
+  /**
+   * Каталог сегментов.
+   */
+  private final Path directory;
+
+  /**
+   * Имя журнала, префикс файлов сегментов.
+   */
+  private final String name;
+
+  /**
+   * Количество записей в сегменте.
+   */
+  private final int capacity;
+
+  /**
+   * Максимальное количество сегментов.
+   */
+  private final int maxSegments;
+
+  /**
+   * Закрытые сегменты, ожидающие воспроизведения, в порядке создания.
+   */
+  private final Deque<Path> sealed = new ArrayDeque<>();
+
+  /**
+   * Количество записей, ожидающих воспроизведения.
+   */
+  private final AtomicLong pending = new AtomicLong();
+
+  /**
+   * Количество воспроизведенных записей.
+   */
+  private final Counter replayed;
+
+  /**
+   * Количество записей с неверной контрольной суммой.
+   */
+  private final Counter corrupted;
+
+  /**
+   * Количество записей, не принятых из-за заполнения журнала.
+   */
+  private final Counter rejected;
+
+  /**
+   * Планировщик файловых операций.
+   */
+  private final Scheduler io;
+
+  /**
+   * Номер последнего созданного сегмента.
+   */
+  private long sequence;
+
+  /**
+   * Заранее созданный следующий сегмент или null, если он еще не готов.
+   */
+  private Segment spare;
+
+  /**
+   * Создается ли следующий сегмент.
+   */
+  private boolean preparing;
+
+  /**
+   * Файл текущего сегмента или null, если сегмент еще не создан.
+   */
+  private Path current;
+
+  /**
+   * Отображение текущего сегмента в память.
+   */
+  private MappedByteBuffer buffer;
+
+  /**
+   * Номер следующей записи в текущем сегменте.
+   */
+  private int position;
+
+  /**
+   * Создает журнал и находит сегменты, оставшиеся от предыдущего запуска.
+   *
+   * @param name        имя журнала для файлов и метрик
+   * @param directory   каталог сегментов
+   * @param segmentSize размер сегмента в байтах
+   * @param maxSegments максимальное количество сегментов
+   * @param registry    реестр метрик
+   * @throws IOException если каталог недоступен
+   */
+  public Journal(String name, Path directory, long segmentSize, int maxSegments, MeterRegistry registry) throws IOException {
+    this(name, directory, segmentSize, maxSegments, registry, Schedulers.boundedElastic());
+  }
+
+  Journal(String name, Path directory, long segmentSize, int maxSegments, MeterRegistry registry, Scheduler io) throws IOException {
+    this.name = name;
+    this.io = io;
+    this.directory = Files.createDirectories(directory);
+    this.capacity = (int) Math.min(Integer.MAX_VALUE / RECORD_SIZE, Math.max(1, segmentSize / RECORD_SIZE));
+    this.maxSegments = Math.max(2, maxSegments);
+    this.replayed = Counter.builder("Journal_" + name + "_replayed_count")
+      .register(registry);
+    this.corrupted = Counter.builder("Journal_" + name + "_corrupted_count")
+      .register(registry);
+    this.rejected = Counter.builder("Journal_" + name + "_rejected_count")
+      .register(registry);
+    Gauge.builder("Journal_" + name + "_pending_count", pending::get)
+      .register(registry);
+    Gauge.builder("Journal_" + name + "_segment_count", this::segments)
+      .register(registry);
+    try (Stream<Path> files = Files.list(this.directory)) {
+      files.filter(file -> file.getFileName().toString().startsWith(name + "-") && file.getFileName().toString().endsWith(SUFFIX))
+        .sorted()
+        .forEach(file -> {
+          sequence = Math.max(sequence, sequence(file));
+          long count = count(file);
+          if (count == 0) {
+            delete(file);
+            return;
+          }
+          sealed.add(file);
+          pending.addAndGet(count);
+        });
+    }
+    if (!sealed.isEmpty()) {
+      log.info("Journal {} has {} increments from previous run in {} segments", name, pending.get(), sealed.size());
+    }
+    if (segments() < this.maxSegments) {
+      spare = allocate(++sequence);
+    }
+  }
+
+  /**
+   * Добавляет увеличение в журнал.
+   *
+   * @param userId    идентификатор пользователя
+   * @param counterId идентификатор счетчика
+   * @param delta     величина увеличения
+   * @return true, если увеличение принято; false, если журнал заполнен или следующий сегмент еще не создан
+   */
+  public synchronized boolean append(long userId, long counterId, long delta) {
+    if (buffer == null || position == capacity) {
+      if (spare == null) {
+        rejected.increment();
+        prepare();
+        return false;
+      }
+      rotate();
+    }
+    int offset = position * RECORD_SIZE;
+    buffer.putLong(offset + DATA_OFFSET, userId);
+    buffer.putLong(offset + DATA_OFFSET + 8, counterId);
+    buffer.putLong(offset + DATA_OFFSET + 16, delta);
+    buffer.putLong(offset + DATA_OFFSET + 24, System.currentTimeMillis());
+    buffer.putInt(offset + CRC_OFFSET, checksum(buffer, offset));
+    buffer.put(offset, PENDING);
+    position++;
+    pending.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Возвращает количество записей, ожидающих воспроизведения.
+   */
+  public long pending() {
+    return pending.get();
+  }
+
+  /**
+   * Сбрасывает текущий сегмент на диск.
+   */
+  @Override
+  public synchronized void close() {
+    if (buffer != null) {
+      buffer.force();
+    }
+  }
+
+  /**
+   * Воспроизводит все принятые записи. Текущий сегмент закрывается, новые записи попадут в следующий.
+   * Воспроизведение останавливается на первой ошибке; невоспроизведенные записи остаются в журнале.
+   *
+   * @param apply       применение записи
+   * @param concurrency количество одновременно применяемых записей
+   * @return количество воспроизведенных записей
+   */
+  public Mono<Long> replay(Function<Entry, Mono<?>> apply, int concurrency) {
+    return Mono.fromCallable(this::seal)
+      .subscribeOn(io)
+      .flatMapMany(Flux::fromIterable)
+      .concatMap(file -> replay(file, apply, concurrency))
+      .reduce(0L, Long::sum);
+  }
+
+  private Mono<Long> replay(Path file, Function<Entry, Mono<?>> apply, int concurrency) {
+    return Mono.fromCallable(() -> map(file))
+      .subscribeOn(io)
+      .flatMap(segment -> Flux.range(0, (int) (segment.capacity() / RECORD_SIZE))
+        .map(index -> index * RECORD_SIZE)
+        .takeWhile(offset -> segment.get(offset) != EMPTY)
+        .filter(offset -> segment.get(offset) == PENDING && valid(segment, offset))
+        .flatMap(offset -> apply.apply(entry(segment, offset))
+          .then(Mono.fromRunnable(() -> {
+            segment.put(offset, REPLAYED);
+            pending.decrementAndGet();
+            replayed.increment();
+          }))
+          .thenReturn(1L), concurrency)
+        .reduce(0L, Long::sum)
+        .flatMap(count -> Mono.fromCallable(() -> {
+          remove(file);
+          return count;
+        }).subscribeOn(io)));
+  }
+
+  /**
+   * Проверяет контрольную сумму записи; запись с неверной суммой помечается и больше не читается.
+   */
+  private boolean valid(MappedByteBuffer segment, int offset) {
+    if (segment.getInt(offset + CRC_OFFSET) == checksum(segment, offset)) {
+      return true;
+    }
+    log.warn("Journal {} record at {} is corrupted and skipped", name, offset);
+    segment.put(offset, CORRUPTED);
+    pending.decrementAndGet();
+    corrupted.increment();
+    return false;
+  }
+
+  private static Entry entry(MappedByteBuffer segment, int offset) {
+    return new Entry(segment.getLong(offset + DATA_OFFSET),
+      segment.getLong(offset + DATA_OFFSET + 8),
+      segment.getLong(offset + DATA_OFFSET + 16),
+      segment.getLong(offset + DATA_OFFSET + 24));
+  }
+
+  private static int checksum(MappedByteBuffer segment, int offset) {
+    CRC32C crc = new CRC32C();
+    crc.update(segment.slice(offset + DATA_OFFSET, DATA_SIZE));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Закрывает текущий сегмент и возвращает все закрытые сегменты для воспроизведения.
+   * Сегмент сбрасывается на диск без блокировки журнала, чтобы не задерживать запись.
+   */
+  private List<Path> seal() {
+    MappedByteBuffer closed;
+    List<Path> files;
+    synchronized (this) {
+      closed = buffer;
+      if (buffer != null) {
+        sealed.add(current);
+        buffer = null;
+        current = null;
+      }
+      files = new ArrayList<>(sealed);
+    }
+    if (closed != null) {
+      closed.force();
+    }
+    return files;
+  }
+
+  private void remove(Path file) throws IOException {
+    synchronized (this) {
+      sealed.remove(file);
+    }
+    Files.deleteIfExists(file);
+    synchronized (this) {
+      prepare();
+    }
+  }
+
+  /**
+   * Возвращает количество файлов сегментов, включая заранее созданный.
+   */
+  private synchronized int segments() {
+    return sealed.size() + (buffer == null ? 0 : 1) + (spare == null ? 0 : 1);
+  }
+
+  /**
+   * Закрывает текущий сегмент и переходит на заранее созданный. Закрытый сегмент сбрасывается на диск
+   * в планировщике файловых операций, там же создается следующий сегмент.
+   */
+  private void rotate() {
+    if (buffer != null) {
+      MappedByteBuffer full = buffer;
+      io.schedule(full::force);
+      sealed.add(current);
+    }
+    current = spare.file();
+    buffer = spare.buffer();
+    spare = null;
+    position = 0;
+    prepare();
+  }
+
+  /**
+   * Создает следующий сегмент в планировщике файловых операций, если его нет и журнал не заполнен.
+   * Вызывается под блокировкой журнала.
+   */
+  private void prepare() {
+    if (spare != null || preparing || segments() >= maxSegments) {
+      return;
+    }
+    preparing = true;
+    long next = ++sequence;
+    io.schedule(() -> {
+      Segment segment = null;
+      try {
+        segment = allocate(next);
+      } catch (UncheckedIOException e) {
+        log.error("Journal {} can't create segment {}: {}", name, next, e.getMessage());
+      }
+      synchronized (this) {
+        spare = segment;
+        preparing = false;
+      }
+    });
+  }
+
+  private Segment allocate(long number) {
+    Path file = directory.resolve(String.format("%s-%019d%s", name, number, SUFFIX));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+      StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static MappedByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+    }
+  }
+
+  private long sequence(Path file) {
+    String fileName = file.getFileName().toString();
+    return Long.parseLong(fileName.substring(name.length() + 1, fileName.length() - SUFFIX.length()));
+  }
+
+  /**
+   * Считает записи сегмента, ожидающие воспроизведения.
+   */
+  private static long count(Path file) {
+    try {
+      MappedByteBuffer segment = map(file);
+      long count = 0;
+      for (int offset = 0; offset + RECORD_SIZE <= segment.capacity() && segment.get(offset) != EMPTY; offset += RECORD_SIZE) {
+        if (segment.get(offset) == PENDING) {
+          count++;
+        }
+      }
+      return count;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Увеличение, принятое в журнал.
+   *
+   * @param userId    идентификатор пользователя
+   * @param counterId идентификатор счетчика
+   * @param delta     величина увеличения
+   * @param timestamp время приема в миллисекундах
+   */
+  public record Entry(long userId, long counterId, long delta, long timestamp) {
+  }
+
+  /**
+   * Файл сегмента и его отображение в память.
+   */
+  private record Segment(Path file, MappedByteBuffer buffer) {
+  }
+}
@@ -0,0 +1,62 @@
+package ru.pastor.templates.named.cache;
+
+/**
+ * Формирование и разбор ключей значений счетчиков вида "named:userId:counterId".
+ * Группа ключа - все, что до последнего двоеточия ("named:userId"), поле - идентификатор счетчика.
+ */
+public final class Keys {
+
+  private Keys() {
+  }
+
+  /**
+   * Формирует ключ значения счетчика пользователя вида "named:userId:counterId".
+   */
+  public static String of(long userId, long counterId) {
+    return "named:" + userId + ':' + counterId;
+  }
+
+  /**
+   * Формирует группу всех счетчиков пользователя вида "named:userId".
+   */
+  public static String group(long userId) {
+    return "named:" + userId;
+  }
+
+  /**
+   * Возвращает группу ключа - часть до последнего двоеточия.
+   */
+  public static String group(String key) {
+    return key.substring(0, separator(key));
+  }
+
+  /**
+   * Возвращает поле ключа - часть после последнего двоеточия.
+   */
+  public static String field(String key) {
+    return key.substring(separator(key) + 1);
+  }
+
+  /**
+   * Возвращает идентификатор пользователя из ключа "named:userId:counterId".
+   */
+  public static long userId(String key) {
+    int field = separator(key);
+    return Long.parseLong(key, key.lastIndexOf(':', field - 1) + 1, field, 10);
+  }
+
+  /**
+   * Возвращает идентификатор счетчика из ключа "named:userId:counterId".
+   */
+  public static long counterId(String key) {
+    return Long.parseLong(key, separator(key) + 1, key.length(), 10);
+  }
+
+  private static int separator(String key) {
+    int index = key.lastIndexOf(':');
+    if (index < 0) {
+      throw new IllegalArgumentException("Key without group: " + key);
+    }
+    return index;
+  }
+}
@@ -1,5 +1,7 @@
 package ru.pastor.templates.named.cache;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import io.micrometer.core.instrument.Gauge;
@@ -7,6 +9,8 @@ import io.micrometer.core.instrument.MeterRegistry;
 import reactor.core.publisher.Mono;
 
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
@@ -48,6 +52,50 @@ public interface NamedCache<K, V> {
 
   Mono<V> reset(K key, V value);
 
+  /**
+   * Записывает значение, только если его нет в кэше.
+   * Реализация по умолчанию не атомарна: значение, записанное между чтением и записью, будет перезаписано.
+   *
+   * @param key   ключ значения
+   * @param value записываемое значение
+   * @return true, если значение записано; false, если значение уже было
+   */
+  default Mono<Boolean> putIfAbsent(K key, V value) {
+    return get(key)
+      .map(existing -> false)
+      .switchIfEmpty(Mono.defer(() -> update(key, value).thenReturn(true)));
+  }
+
+  /**
+   * Получает все значения группы одним запросом, если кэш хранит значения группами.
+   *
+   * @param group ключ группы, например "named:userId" для счетчиков пользователя
+   * @return значения группы по полным ключам или пустой Mono, если группы не поддерживаются
+   */
+  default Mono<Map<K, V>> group(K group) {
+    return Mono.empty();
+  }
+
+  /**
+   * Сообщает, публикует ли кэш новое значение в стрим изменений при увеличении.
+   * Если публикует, вызывающему не нужно отправлять уведомление об изменении отдельно.
+   *
+   * @return true, если увеличение сопровождается публикацией
+   */
+  default boolean publishes() {
+    return false;
+  }
+
+  /**
+   * Удаляет значение только из локального кэша, не обращаясь к делегату.
+   * Используется, когда значение изменено другим узлом.
+   * Кэши без локального хранения ничего не делают.
+   *
+   * @param key ключ удаляемого значения
+   */
+  default void evict(K key) {
+  }
+
   /**
    * Интерфейс для загрузки всех значений кэша.
    *
@@ -121,6 +169,11 @@ public interface NamedCache<K, V> {
      */
     private final NamedCache<K, V> delegate;
 
+    /**
+     * Загрузчик отсутствующих значений: одновременные промахи одного ключа получают результат одного запроса к делегату.
+     */
+    private final SingleFlight<K, V> flight;
+
     /**
      * Создает новый локальный кэш с указанными параметрами.
      *
@@ -142,6 +195,7 @@ public interface NamedCache<K, V> {
         .expireAfterWrite(expires.toSeconds(), TimeUnit.SECONDS)
         .build();
       this.delegate = delegate;
+      this.flight = new SingleFlight<>(name, registry);
       Gauge.builder("Cache_" + name + "_hit_count", () -> cache.stats().hitCount())
         .register(registry);
       Gauge.builder("Cache_" + name + "_miss_count", () -> cache.stats().missCount())
@@ -161,7 +215,9 @@ public interface NamedCache<K, V> {
     /**
      * {@inheritDoc}
      * Получает значение из локального кэша, а при отсутствии - из делегата.
-     * Полученное от делегата значение сохраняется в локальном кэше.
+     * Одновременные промахи одного ключа ждут один запрос к делегату.
+     * Полученное от делегата значение сохраняется в локальном кэше, если за время запроса
+     * туда не записали более новое значение.
      */
     @Override
     public Mono<V> get(K key) {
@@ -170,8 +226,8 @@ public interface NamedCache<K, V> {
         return Mono.just(cachedValue);
       }
 
-      return delegate.get(key)
-        .doOnNext(value -> cache.put(key, value));
+      return flight.load(key, k -> delegate.get(k)
+        .doOnNext(value -> cache.asMap().putIfAbsent(k, value)));
     }
 
     /**
@@ -205,5 +261,149 @@ public interface NamedCache<K, V> {
         .flatMap(v -> Mono.fromRunnable(() -> cache.invalidate(key)))
         .thenReturn(value);
     }
+
+    /**
+     * {@inheritDoc}
+     * Группы не хранятся локально и всегда запрашиваются у делегата.
+     */
+    @Override
+    public Mono<Map<K, V>> group(K group) {
+      return delegate.group(group);
+    }
+
+    @Override
+    public boolean publishes() {
+      return delegate.publishes();
+    }
+
+    @Override
+    public void evict(K key) {
+      cache.invalidate(key);
+    }
+  }
+
+  /**
+   * Локальная реализация кэша на основе асинхронного кэша Caffeine.
+   * В отличие от {@link Local} хранит значения по сильным ссылкам и вытесняет их по политике W-TinyLFU,
+   * поэтому частота попаданий не зависит от сборки мусора. Значения обновляются из делегата в фоне
+   * после refresh, а запрос продолжает получать прежнее значение, пока обновление не завершится.
+   * Одновременные промахи одного ключа ждут одну загрузку из делегата.
+   *
+   * @param <K> тип ключа
+   * @param <V> тип значения
+   */
+  final class Async<K, V> implements NamedCache<K, V> {
+    /**
+     * Внутренний асинхронный кэш, загружающий значения из делегата.
+     */
+    private final AsyncLoadingCache<K, V> cache;
+
+    /**
+     * Делегат для получения значений, отсутствующих в локальном кэше.
+     */
+    private final NamedCache<K, V> delegate;
+
+    /**
+     * Создает новый асинхронный локальный кэш с указанными параметрами.
+     *
+     * @param name        имя кэша для метрик
+     * @param maximumSize максимальное количество элементов
+     * @param expires     время жизни элементов кэша, нулевое - без ограничения
+     * @param refresh     время, после которого элемент обновляется из делегата при очередном обращении,
+     *                    нулевое - без обновления
+     * @param registry    реестр метрик
+     * @param delegate    делегат для получения отсутствующих значений
+     * @param all         источник для предварительной загрузки всех значений
+     */
+    public Async(String name,
+                 long maximumSize,
+                 Duration expires,
+                 Duration refresh,
+                 MeterRegistry registry,
+                 NamedCache<K, V> delegate,
+                 All<K, V> all) {
+      this.delegate = delegate;
+      Caffeine<Object, Object> builder = Caffeine.newBuilder()
+        .recordStats()
+        .maximumSize(maximumSize);
+      if (!expires.isZero()) {
+        builder.expireAfterWrite(expires);
+      }
+      if (!refresh.isZero()) {
+        builder.refreshAfterWrite(refresh);
+      }
+      this.cache = builder.buildAsync((key, executor) -> delegate.get(key).toFuture());
+      Gauge.builder("Cache_" + name + "_hit_count", () -> cache.synchronous().stats().hitCount())
+        .register(registry);
+      Gauge.builder("Cache_" + name + "_miss_count", () -> cache.synchronous().stats().missCount())
+        .register(registry);
+      Gauge.builder("Cache_" + name + "_eviction_count", () -> cache.synchronous().stats().evictionCount())
+        .register(registry);
+      Gauge.builder("Cache_" + name + "_total_load_time", () -> cache.synchronous().stats().totalLoadTime())
+        .register(registry);
+      if (all != null) {
+        all.all((k, v) -> {
+          cache.put(k, CompletableFuture.completedFuture(v));
+          return null;
+        }).subscribe();
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Получает значение из кэша, загружая его из делегата при отсутствии.
+     * Отмена запроса не отменяет загрузку, которую могут ждать другие запросы.
+     */
+    @Override
+    public Mono<V> get(K key) {
+      return Mono.fromFuture(() -> cache.get(key), true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Удаляет значение из делегата, а затем из локального кэша.
+     */
+    @Override
+    public Mono<Void> delete(K key) {
+      return delegate.delete(key).then(Mono.fromRunnable(() -> cache.synchronous().invalidate(key)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Обновляет значение в делегате, а затем в локальном кэше.
+     */
+    @Override
+    public Mono<V> increment(K key, V value) {
+      return delegate.increment(key, value)
+        .doOnNext(v -> cache.synchronous().put(key, v));
+    }
+
+    @Override
+    public Mono<V> update(K key, V value) {
+      return delegate.update(key, value)
+        .doOnNext(v -> cache.synchronous().put(key, v));
+    }
+
+    @Override
+    public Mono<V> reset(K key, V value) {
+      return delegate.reset(key, value)
+        .flatMap(v -> Mono.fromRunnable(() -> cache.synchronous().invalidate(key)))
+        .thenReturn(value);
+    }
+
+    @Override
+    public Mono<Map<K, V>> group(K group) {
+      return delegate.group(group);
+    }
+
+    @Override
+    public boolean publishes() {
+      return delegate.publishes();
+    }
+
+    @Override
+    public void evict(K key) {
+      cache.synchronous().invalidate(key);
+    }
   }
 }
@@ -1,81 +1,372 @@
 package ru.pastor.templates.named.cache;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ReactiveHashOperations;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisElementReader;
+import org.springframework.data.redis.serializer.RedisElementWriter;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Map;
+
 //import java.time.Duration;
 
 /**
  * Реализация интерфейса NamedCache для работы с Redis.
  * Предоставляет реактивный доступ к операциям с кэшем Redis для хранения пар ключ-значение.
- * Обрабатывает ошибки Redis и логирует их, возвращая пустые Mono в случае сбоев.
+ * Ошибки Redis логируются и передаются вызывающему, чтобы он мог переключиться на резервное хранилище.
+ * Способ размещения значений в Redis задается {@link Layout}.
+ * Если задан ключ стрима, увеличение и публикация нового значения в стрим выполняются
+ * одним Lua-скриптом на стороне Redis.
+ * Если задан источник, отсутствующее в Redis значение загружается из него и записывается в Redis
+ * командой SET NX, поэтому значения восстанавливаются после потери данных Redis.
  */
 @Slf4j
-@RequiredArgsConstructor
-public final class Redis implements NamedCache<String, Integer> {
+public final class Redis implements NamedCache<String, Long> {
+  /**
+   * Записывает аргументы скрипта строками, чтобы Redis мог работать с ними как с числами.
+   */
+  private static final RedisElementWriter<String> ARGS = RedisElementWriter.from(RedisSerializer.string());
+
+  /**
+   * Читает результат скрипта, если он пришел не целым числом, а строкой.
+   */
+  private static final RedisElementReader<Long> RESULT = RedisCodec::decode;
+
   /**
    * Операции Redis для реактивной работы с парами ключ-значение.
    * Используется для выполнения базовых операций get, set и delete.
    */
   private final ReactiveRedisOperations<String, Number> operations;
 
-  private static void onError(String key, Integer value, Throwable e) {
+  /**
+   * Способ размещения значений в Redis.
+   */
+  private final Layout layout;
+
+  /**
+   * Ключ стрима, в который публикуются новые значения при увеличении, или null, если публикация не выполняется.
+   */
+  private final String stream;
+
+  /**
+   * Источник значений, отсутствующих в Redis, или null, если значения не восстанавливаются.
+   */
+  private final NamedCache<String, Long> source;
+
+  /**
+   * Загрузчик из источника: одна загрузка на ключ и ограниченное число одновременных загрузок.
+   */
+  private final SingleFlight<String, Long> flight;
+
+  public Redis(ReactiveRedisOperations<String, Number> operations) {
+    this(operations, Layout.STRING, null);
+  }
+
+  public Redis(ReactiveRedisOperations<String, Number> operations, Layout layout, String stream) {
+    this(operations, layout, stream, null, null);
+  }
+
+  /**
+   * Создает кэш Redis.
+   *
+   * @param operations операции Redis
+   * @param layout     способ размещения значений
+   * @param stream     ключ стрима для публикации новых значений при увеличении; null - без публикации
+   * @param source     источник значений, отсутствующих в Redis; null - без восстановления
+   * @param flight     загрузчик из источника
+   */
+  public Redis(ReactiveRedisOperations<String, Number> operations,
+               Layout layout,
+               String stream,
+               NamedCache<String, Long> source,
+               SingleFlight<String, Long> flight) {
+    this.operations = operations;
+    this.layout = layout;
+    this.stream = stream;
+    this.source = source;
+    this.flight = flight;
+  }
+
+  private static void onError(String key, Long value, Throwable e) {
     log.error("Error updating key {} with value {}: {}", key, value, e.getMessage());
   }
 
   /**
    * {@inheritDoc}
-   * Получает значение из Redis по ключу.
-   * В случае ошибки логирует сообщение и возвращает пустой Mono.
+   * Получает значение из Redis по ключу, а при промахе - из источника, если он задан.
+   * Ошибка чтения или восстановления не заменяется отсутствием значения.
    */
   @Override
-  public Mono<Integer> get(String key) {
-    return operations.opsForValue().get(key)
-      .map(Number::intValue)
-      .onErrorResume(e -> {
-        log.error("Error getting value for key {}: {}", key, e.getMessage());
-        return Mono.empty();
-      });
+  public Mono<Long> get(String key) {
+    return layout.get(operations, key)
+      .map(Number::longValue)
+      .switchIfEmpty(Mono.defer(() -> restore(key)))
+      .doOnError(e -> log.error("Error getting value for key {}: {}", key, e.getMessage()));
   }
 
   /**
    * {@inheritDoc}
    * Удаляет значение из Redis по ключу.
-   * В случае ошибки логирует сообщение и возвращает пустой Mono.
    */
   @Override
   public Mono<Void> delete(String key) {
-    return operations.delete(key)
-      .onErrorResume(e -> {
-        log.error("Error deleting key {}: {}", key, e.getMessage());
-        return Mono.just(0L);
-      })
+    return layout.delete(operations, key)
+      .doOnError(e -> log.error("Error deleting key {}: {}", key, e.getMessage()))
       .then();
   }
 
   /**
    * {@inheritDoc}
    * Обновляет значение в Redis по ключу.
-   * В случае ошибки логирует сообщение и возвращает пустой Mono.
+   * Если задан источник, увеличивается только существующее значение; при промахе значение сначала
+   * восстанавливается из источника. Если в источнике значения нет, счетчик создается с нуля.
+   * Ошибка логируется и передается вызывающему, чтобы он мог переключиться на резервное хранилище.
    */
   @Override
-  public Mono<Integer> increment(String key, Integer value) {
-    return operations.opsForValue().increment(key, value.longValue())
-      .map(Long::intValue)
+  public Mono<Long> increment(String key, Long value) {
+    Mono<Long> incremented = source == null ? increment(key, value, false) :
+      increment(key, value, true)
+        .switchIfEmpty(Mono.defer(() -> restore(key)
+          .then(increment(key, value, false))));
+    return incremented
       .doOnError(e -> onError(key, value, e));
   }
 
+  /**
+   * Увеличивает значение, а при заданном стриме в том же скрипте добавляет в стрим запись
+   * с полями user-id, counter-id и value. Скрипт выполняется через EVALSHA, поэтому увеличение
+   * и публикация занимают один запрос и не могут разойтись при сбое между ними.
+   *
+   * @param existing увеличивать только существующее значение; при его отсутствии вернуть пустой Mono
+   */
+  private Mono<Long> increment(String key, long delta, boolean existing) {
+    if (stream == null && !existing) {
+      return layout.increment(operations, key, delta);
+    }
+    List<String> keys = stream == null ? List.of(layout.scriptKey(key)) : List.of(layout.scriptKey(key), stream);
+    return operations.execute(layout.script(), keys, List.of(Long.toString(delta),
+        Long.toString(Keys.userId(key)), Keys.field(key), existing ? "1" : "0"), ARGS, RESULT)
+      .next();
+  }
+
+  /**
+   * Загружает значение из источника и записывает его в Redis, если значение там еще не появилось.
+   * Возвращает значение, оказавшееся в Redis, так как его мог записать другой узел.
+   */
+  private Mono<Long> restore(String key) {
+    if (source == null) {
+      return Mono.empty();
+    }
+    return flight.load(key, k -> source.get(k)
+      .flatMap(value -> layout.setIfAbsent(operations, k, value)
+        .then(layout.get(operations, k))
+        .map(Number::longValue)
+        .doOnNext(v -> log.debug("Restored key {} with value {}", k, v))));
+  }
+
+  /**
+   * {@inheritDoc}
+   * Возвращает true, если увеличение публикует новое значение в стрим.
+   */
   @Override
-  public Mono<Integer> update(String key, Integer value) {
-    return operations.opsForValue().set(key, value)
+  public boolean publishes() {
+    return stream != null;
+  }
+
+  @Override
+  public Mono<Long> update(String key, Long value) {
+    return layout.set(operations, key, value)
       .flatMap(v -> Mono.just(value))
       .doOnError(e -> onError(key, value, e));
   }
 
   @Override
-  public Mono<Integer> reset(String key, Integer value) {
+  public Mono<Long> reset(String key, Long value) {
     return update(key, value);
   }
+
+  /**
+   * {@inheritDoc}
+   * Записывает значение командой SET NX (HSETNX для {@link Layout#HASH}), не восстанавливая его из источника.
+   */
+  @Override
+  public Mono<Boolean> putIfAbsent(String key, Long value) {
+    return layout.setIfAbsent(operations, key, value)
+      .doOnError(e -> onError(key, value, e));
+  }
+
+  /**
+   * {@inheritDoc}
+   * Для размещения {@link Layout#HASH} читает хэш группы одной командой HGETALL.
+   */
+  @Override
+  public Mono<Map<String, Long>> group(String group) {
+    return layout.group(operations, group)
+      .doOnError(e -> log.error("Error getting group {}: {}", group, e.getMessage()));
+  }
+
+  /**
+   * Способ размещения значений счетчиков в Redis.
+   * Ключ кэша состоит из группы и поля, разделенных последним двоеточием: "named:userId:counterId".
+   */
+  public enum Layout {
+    /**
+     * Отдельный строковый ключ на каждый счетчик.
+     */
+    STRING {
+      @Override
+      Mono<Number> get(ReactiveRedisOperations<String, Number> operations, String key) {
+        return operations.opsForValue().get(key);
+      }
+
+      @Override
+      Mono<Long> delete(ReactiveRedisOperations<String, Number> operations, String key) {
+        return operations.delete(key);
+      }
+
+      @Override
+      Mono<Long> increment(ReactiveRedisOperations<String, Number> operations, String key, long delta) {
+        return operations.opsForValue().increment(key, delta);
+      }
+
+      @Override
+      Mono<Boolean> set(ReactiveRedisOperations<String, Number> operations, String key, Long value) {
+        return operations.opsForValue().set(key, value);
+      }
+
+      @Override
+      Mono<Boolean> setIfAbsent(ReactiveRedisOperations<String, Number> operations, String key, Long value) {
+        return operations.opsForValue().setIfAbsent(key, value);
+      }
+
+      @Override
+      Mono<Map<String, Long>> group(ReactiveRedisOperations<String, Number> operations, String group) {
+        return Mono.empty();
+      }
+
+      @Override
+      RedisScript<Long> script() {
+        return STRING_SCRIPT;
+      }
+
+      @Override
+      String scriptKey(String key) {
+        return key;
+      }
+    },
+
+    /**
+     * Один хэш на группу ("named:userId"), счетчики хранятся в полях хэша по идентификатору.
+     * Небольшие хэши Redis хранит в компактной кодировке listpack, что заметно экономит память
+     * по сравнению с отдельными ключами, а все счетчики пользователя читаются одной командой.
+     */
+    HASH {
+      @Override
+      Mono<Number> get(ReactiveRedisOperations<String, Number> operations, String key) {
+        return hash(operations).get(Keys.group(key), Keys.field(key));
+      }
+
+      @Override
+      Mono<Long> delete(ReactiveRedisOperations<String, Number> operations, String key) {
+        return hash(operations).remove(Keys.group(key), Keys.field(key));
+      }
+
+      @Override
+      Mono<Long> increment(ReactiveRedisOperations<String, Number> operations, String key, long delta) {
+        return hash(operations).increment(Keys.group(key), Keys.field(key), delta);
+      }
+
+      @Override
+      Mono<Boolean> set(ReactiveRedisOperations<String, Number> operations, String key, Long value) {
+        return hash(operations).put(Keys.group(key), Keys.field(key), value);
+      }
+
+      @Override
+      Mono<Boolean> setIfAbsent(ReactiveRedisOperations<String, Number> operations, String key, Long value) {
+        return hash(operations).putIfAbsent(Keys.group(key), Keys.field(key), value);
+      }
+
+      @Override
+      Mono<Map<String, Long>> group(ReactiveRedisOperations<String, Number> operations, String group) {
+        return hash(operations).entries(group)
+          .collectMap(e -> group + ':' + e.getKey(), e -> e.getValue().longValue());
+      }
+
+      @Override
+      RedisScript<Long> script() {
+        return HASH_SCRIPT;
+      }
+
+      @Override
+      String scriptKey(String key) {
+        return Keys.group(key);
+      }
+    };
+
+    /**
+     * Скрипт увеличения для {@link #STRING}.
+     * KEYS: ключ счетчика и, если значение нужно опубликовать, ключ стрима.
+     * ARGV: величина увеличения, идентификатор пользователя, идентификатор счетчика и
+     * "1", если увеличивать только существующее значение (иначе скрипт возвращает nil).
+     */
+    private static final RedisScript<Long> STRING_SCRIPT = RedisScript.of(
+      "if ARGV[4] == '1' and redis.call('EXISTS', KEYS[1]) == 0 then return false end " +
+        "local value = redis.call('INCRBY', KEYS[1], ARGV[1]) " +
+        "if KEYS[2] then " +
+        "redis.call('XADD', KEYS[2], '*', 'user-id', ARGV[2], 'counter-id', ARGV[3], 'value', value) " +
+        "end " +
+        "return value", Long.class);
+
+    /**
+     * Скрипт увеличения для {@link #HASH}.
+     * KEYS: ключ хэша пользователя и, если значение нужно опубликовать, ключ стрима.
+     * ARGV: те же, что у скрипта {@link #STRING}; идентификатор счетчика является полем хэша.
+     */
+    private static final RedisScript<Long> HASH_SCRIPT = RedisScript.of(
+      "if ARGV[4] == '1' and redis.call('HEXISTS', KEYS[1], ARGV[3]) == 0 then return false end " +
+        "local value = redis.call('HINCRBY', KEYS[1], ARGV[3], ARGV[1]) " +
+        "if KEYS[2] then " +
+        "redis.call('XADD', KEYS[2], '*', 'user-id', ARGV[2], 'counter-id', ARGV[3], 'value', value) " +
+        "end " +
+        "return value", Long.class);
+
+    public static Layout of(String layout) {
+      for (Layout l : values()) {
+        if (l.name().equalsIgnoreCase(layout)) {
+          return l;
+        }
+      }
+      throw new IllegalArgumentException("Unknown layout: " + layout);
+    }
+
+    private static ReactiveHashOperations<String, String, Number> hash(ReactiveRedisOperations<String, Number> operations) {
+      return operations.opsForHash();
+    }
+
+    abstract Mono<Number> get(ReactiveRedisOperations<String, Number> operations, String key);
+
+    abstract Mono<Long> delete(ReactiveRedisOperations<String, Number> operations, String key);
+
+    abstract Mono<Long> increment(ReactiveRedisOperations<String, Number> operations, String key, long delta);
+
+    abstract Mono<Boolean> set(ReactiveRedisOperations<String, Number> operations, String key, Long value);
+
+    abstract Mono<Boolean> setIfAbsent(ReactiveRedisOperations<String, Number> operations, String key, Long value);
+
+    abstract Mono<Map<String, Long>> group(ReactiveRedisOperations<String, Number> operations, String group);
+
+    /**
+     * Скрипт увеличения с проверкой существования и публикацией в стрим.
+     */
+    abstract RedisScript<Long> script();
+
+    /**
+     * Ключ Redis, который изменяет скрипт увеличения.
+     */
+    abstract String scriptKey(String key);
+  }
 }
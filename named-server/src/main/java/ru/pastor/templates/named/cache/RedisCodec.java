@@ -0,0 +1,138 @@
+package ru.pastor.templates.named.cache;
+
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Кодирование ключей и значений счетчиков для Redis без промежуточных объектов.
+ * Ключи счетчиков состоят только из символов ASCII и кодируются в LATIN1: строка в компактном
+ * представлении копируется в массив байт без перекодирования.
+ * Значения кодируются десятичной записью ASCII - так Redis хранит целые числа, поэтому значение,
+ * записанное SET, можно увеличить INCRBY, а результат INCRBY читается без преобразований.
+ */
+public final class RedisCodec {
+  /**
+   * Сериализатор ключей и полей хэшей.
+   */
+  public static final RedisSerializer<String> KEY = new KeySerializer();
+
+  /**
+   * Сериализатор целочисленных значений.
+   */
+  public static final RedisSerializer<Number> NUMBER = new NumberSerializer();
+
+  /**
+   * Десятичная запись наименьшего значения long, у которого нет положительной пары.
+   */
+  private static final byte[] MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+  private RedisCodec() {
+  }
+
+  /**
+   * Записывает число десятичной записью ASCII в массив точного размера.
+   */
+  public static byte[] encode(long value) {
+    if (value == Long.MIN_VALUE) {
+      return MIN_VALUE.clone();
+    }
+    boolean negative = value < 0;
+    long rest = negative ? -value : value;
+    int length = negative ? 2 : 1;
+    for (long v = rest; v >= 10; v /= 10) {
+      length++;
+    }
+    byte[] bytes = new byte[length];
+    int index = length;
+    do {
+      bytes[--index] = (byte) ('0' + rest % 10);
+      rest /= 10;
+    } while (rest != 0);
+    if (negative) {
+      bytes[0] = '-';
+    }
+    return bytes;
+  }
+
+  /**
+   * Читает число из десятичной записи ASCII, не создавая строку.
+   * Как и Redis, принимает только каноническую запись: без ведущих нулей и без "-0".
+   *
+   * @throws NumberFormatException если байты не являются канонической десятичной записью long
+   */
+  public static long decode(ByteBuffer buffer) {
+    int position = buffer.position();
+    int limit = buffer.limit();
+    if (position == limit) {
+      throw new NumberFormatException("Empty number");
+    }
+    boolean negative = buffer.get(position) == '-';
+    int start = negative ? position + 1 : position;
+    if (start == limit) {
+      throw new NumberFormatException("Sign without digits");
+    }
+    if (buffer.get(start) == '0' && (negative || limit - start > 1)) {
+      throw new NumberFormatException("Leading zero");
+    }
+    long result = 0;
+    for (int i = start; i < limit; i++) {
+      int digit = buffer.get(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Not a decimal digit at " + (i - position));
+      }
+      try {
+        result = Math.subtractExact(Math.multiplyExact(result, 10), digit);
+      } catch (ArithmeticException e) {
+        throw new NumberFormatException("Number is out of long range");
+      }
+    }
+    if (negative) {
+      return result;
+    }
+    if (result == Long.MIN_VALUE) {
+      throw new NumberFormatException("Number is out of long range");
+    }
+    return -result;
+  }
+
+  private static final class KeySerializer implements RedisSerializer<String> {
+
+    @Override
+    public byte[] serialize(String value) {
+      return value == null ? null : value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String deserialize(byte[] bytes) {
+      return bytes == null ? null : new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Сериализатор значений. Принимает только десятичную запись: значение прежнего двоичного формата BigInteger
+   * вызывает ошибку чтения, а не читается неверно. Значения прежнего формата переписывает {@link RedisFormat}.
+   */
+  private static final class NumberSerializer implements RedisSerializer<Number> {
+
+    @Override
+    public byte[] serialize(Number value) throws SerializationException {
+      return value == null ? null : encode(value.longValue());
+    }
+
+    @Override
+    public Number deserialize(byte[] bytes) throws SerializationException {
+      if (bytes == null || bytes.length == 0) {
+        return null;
+      }
+      try {
+        return decode(ByteBuffer.wrap(bytes));
+      } catch (NumberFormatException e) {
+        throw new SerializationException("Counter value is not a decimal integer, values written by a previous version " +
+          "must be migrated with app.cache.redis.format.migrate=true: " + e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package ru.pastor.templates.named.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Mono;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Формат значений счетчиков в Redis.
+ * Версии до {@link RedisCodec} записывали значения двоичным представлением BigInteger, текущая -
+ * десятичной записью ASCII. По байтам значения форматы различаются не всегда (12594 = 0x31 0x32 - это и "12"),
+ * поэтому формат всех значений отмечается ключом {@link #KEY}: пока его нет, значения счетчиков в Redis
+ * считаются записанными прежним форматом. Переход выполняется один раз методом {@link #migrate()}
+ * после остановки всех узлов прежней версии.
+ */
+@Slf4j
+public final class RedisFormat {
+  /**
+   * Ключ отметки формата значений счетчиков. Не совпадает с шаблоном ключей счетчиков "named:*".
+   */
+  public static final String KEY = "named_values_format";
+
+  /**
+   * Значение отметки десятичного формата.
+   */
+  private static final byte[] DECIMAL = "decimal".getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Ключи значений счетчиков: строки "named:userId:counterId" и хэши "named:userId".
+   */
+  private static final ScanOptions COUNTERS = ScanOptions.scanOptions().match("named:*").count(1000).build();
+
+  /**
+   * Заменяет значение строки, только если его не изменили после чтения.
+   */
+  private static final RedisScript<Long> REPLACE = RedisScript.of(
+    "if redis.call('GET', KEYS[1]) == ARGV[1] then redis.call('SET', KEYS[1], ARGV[2]) return 1 end return 0",
+    Long.class);
+
+  /**
+   * Заменяет значение поля хэша, только если его не изменили после чтения.
+   */
+  private static final RedisScript<Long> REPLACE_FIELD = RedisScript.of(
+    "if redis.call('HGET', KEYS[1], ARGV[1]) == ARGV[2] then redis.call('HSET', KEYS[1], ARGV[1], ARGV[3]) return 1 end return 0",
+    Long.class);
+
+  /**
+   * Операции Redis над значениями без преобразования байт.
+   */
+  private final ReactiveRedisOperations<String, byte[]> operations;
+
+  public RedisFormat(ReactiveRedisOperations<String, byte[]> operations) {
+    this.operations = operations;
+  }
+
+  /**
+   * Проверяет отметку десятичного формата. Redis без значений счетчиков отмечается сразу: переписывать нечего.
+   *
+   * @return true, если значения счетчиков записаны десятичным форматом
+   */
+  public Mono<Boolean> check() {
+    return decimal()
+      .flatMap(decimal -> decimal ?
+        Mono.just(true) :
+        operations.scan(COUNTERS).hasElements()
+          .flatMap(legacy -> legacy ?
+            Mono.just(false) :
+            operations.opsForValue().setIfAbsent(KEY, DECIMAL).thenReturn(true)));
+  }
+
+  /**
+   * Переписывает значения счетчиков прежнего формата десятичной записью и ставит отметку формата.
+   * Повторный запуск после отметки ничего не делает. Значение, измененное во время перехода, не переписывается.
+   *
+   * @return количество переписанных значений
+   */
+  public Mono<Long> migrate() {
+    return decimal()
+      .flatMap(decimal -> decimal ?
+        Mono.just(0L) :
+        operations.scan(COUNTERS)
+          .concatMap(this::rewrite)
+          .reduce(0L, Long::sum)
+          .flatMap(rewritten -> operations.opsForValue().set(KEY, DECIMAL).thenReturn(rewritten)));
+  }
+
+  /**
+   * Читает значение прежнего формата.
+   *
+   * @return значение или null, если байты не являются двоичным представлением BigInteger
+   */
+  static byte[] legacy(byte[] bytes) {
+    try {
+      return RedisCodec.encode(new BigInteger(bytes).longValue());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private Mono<Boolean> decimal() {
+    return operations.opsForValue().get(KEY)
+      .map(value -> Arrays.equals(DECIMAL, value))
+      .defaultIfEmpty(false);
+  }
+
+  private Mono<Long> rewrite(String key) {
+    return operations.type(key)
+      .flatMap(type -> switch (type) {
+        case STRING -> operations.opsForValue().get(key)
+          .flatMap(value -> replace(key, null, value));
+        case HASH -> operations.<String, byte[]>opsForHash().entries(key)
+          .concatMap(entry -> replace(key, entry.getKey(), entry.getValue()))
+          .reduce(0L, Long::sum);
+        default -> Mono.just(0L);
+      });
+  }
+
+  private Mono<Long> replace(String key, String field, byte[] value) {
+    byte[] decimal = legacy(value);
+    if (decimal == null) {
+      log.warn("Value of {} is not in the legacy format and is left as is", field == null ? key : key + " " + field);
+      return Mono.just(0L);
+    }
+    Mono<Long> replaced = field == null ?
+      operations.execute(REPLACE, List.of(key), List.of(value, decimal)).next() :
+      operations.execute(REPLACE_FIELD, List.of(key), List.of(RedisCodec.KEY.serialize(field), value, decimal)).next();
+    return replaced.defaultIfEmpty(0L);
+  }
+}
@@ -0,0 +1,138 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Загрузчик, выполняющий не более одной загрузки на ключ одновременно.
+ * Одновременные запросы одного ключа получают результат общей загрузки.
+ * Количество одновременных загрузок всех ключей может быть ограничено, тогда остальные ждут в очереди,
+ * и массовый промах (например, после перезапуска Redis) не исчерпывает пул соединений источника.
+ * Без ограничения загрузки запускаются сразу, минуя очередь.
+ *
+ * @param <K> тип ключа
+ * @param <V> тип значения
+ */
+public final class SingleFlight<K, V> {
+  /**
+   * Выполняющиеся загрузки по ключам.
+   */
+  private final ConcurrentMap<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Загрузки, ожидающие освобождения места.
+   */
+  private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Количество выполняющихся загрузок.
+   */
+  private final AtomicInteger running = new AtomicInteger();
+
+  /**
+   * Максимальное количество одновременных загрузок или {@link Integer#MAX_VALUE}, если оно не ограничено.
+   */
+  private final int limit;
+
+  /**
+   * Количество запросов, получивших результат чужой загрузки.
+   */
+  private final Counter coalesced;
+
+  /**
+   * Создает загрузчик без ограничения количества одновременных загрузок.
+   *
+   * @param name     имя для метрик
+   * @param registry реестр метрик
+   */
+  public SingleFlight(String name, MeterRegistry registry) {
+    this(name, Integer.MAX_VALUE, registry);
+  }
+
+  /**
+   * Создает загрузчик.
+   *
+   * @param name     имя для метрик
+   * @param limit    максимальное количество одновременных загрузок
+   * @param registry реестр метрик
+   */
+  public SingleFlight(String name, int limit, MeterRegistry registry) {
+    this.limit = Math.max(1, limit);
+    this.coalesced = Counter.builder("Cache_" + name + "_coalesced_load_count")
+      .register(registry);
+  }
+
+  /**
+   * Загружает значение ключа или присоединяется к уже выполняющейся загрузке.
+   *
+   * @param key    ключ
+   * @param loader загрузка значения
+   * @return значение или пустой Mono, если загрузка ничего не вернула
+   */
+  public Mono<V> load(K key, Function<K, Mono<V>> loader) {
+    return Mono.defer(() -> {
+      Mono<V> existing = inFlight.get(key);
+      if (existing != null) {
+        coalesced.increment();
+        return existing;
+      }
+      // Удаляется только своя загрузка: ключ мог быть уже занят более новой
+      AtomicReference<Mono<V>> self = new AtomicReference<>();
+      Mono<V> load = Mono.defer(() -> loader.apply(key));
+      Mono<V> created = (limit == Integer.MAX_VALUE ? load : limited(load))
+        .doFinally(signal -> inFlight.remove(key, self.get()))
+        .cache();
+      self.set(created);
+      existing = inFlight.putIfAbsent(key, created);
+      if (existing != null) {
+        coalesced.increment();
+        return existing;
+      }
+      return created;
+    });
+  }
+
+  /**
+   * Откладывает загрузку, пока количество выполняющихся загрузок не станет меньше предела.
+   */
+  private Mono<V> limited(Mono<V> load) {
+    return Mono.create(sink -> {
+      waiting.add(() -> load
+        .doFinally(signal -> {
+          running.decrementAndGet();
+          drain();
+        })
+        .subscribe(sink::success, sink::error, sink::success));
+      drain();
+    });
+  }
+
+  /**
+   * Запускает ожидающие загрузки, пока есть свободные места.
+   */
+  private void drain() {
+    while (!waiting.isEmpty()) {
+      int current = running.get();
+      if (current >= limit) {
+        return;
+      }
+      if (running.compareAndSet(current, current + 1)) {
+        Runnable task = waiting.poll();
+        if (task == null) {
+          running.decrementAndGet();
+        } else {
+          task.run();
+        }
+      }
+    }
+  }
+}
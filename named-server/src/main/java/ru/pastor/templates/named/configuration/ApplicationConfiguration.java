@@ -8,9 +8,10 @@ import io.grpc.ServerCallHandler;
 import io.grpc.ServerInterceptor;
 import io.grpc.netty.InternalNettyServerBuilder;
 import io.grpc.netty.NettyServerBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.event.ApplicationFailedEvent;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.annotation.Bean;
@@ -18,14 +19,17 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.event.EventListener;
-import ru.pastor.templates.named.cache.NamedCache;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
 import ru.pastor.templates.named.repository.CatalogueRepository;
+import ru.pastor.templates.named.repository.CounterRepository;
 import ru.pastor.templates.named.service.NamedCatalogueService;
 import ru.pastor.templates.named.service.NamedCountNotification;
 import ru.pastor.templates.named.service.NamedCountService;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.time.Duration;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
@@ -40,15 +44,21 @@ public class ApplicationConfiguration {
 
   @Bean
   public NamedCountService namedCountService(
-    @Qualifier("NamedCache.Values") NamedCache<String, Integer> values,
-    @Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue,
-    NamedCountNotification notification) {
-    return new NamedCountService.Standard(values, catalogue, notification);
+    Counters values,
+    CatalogueIndex catalogue,
+    NamedCountNotification notification,
+    CounterRepository counterRepository,
+    MeterRegistry registry,
+    @Value("${app.service.metrics.enabled:true}") boolean metrics) {
+    if (metrics) {
+      return new NamedCountService.Standard(values, catalogue, notification, counterRepository, registry);
+    }
+    return new NamedCountService.Standard(values, catalogue, notification, counterRepository);
   }
 
   @Bean
   public NamedCatalogueService namedCatalogueService(
-    @Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue,
+    CatalogueIndex catalogue,
     CatalogueRepository catalogueRepository) {
     return new NamedCatalogueService.Standard(catalogue, catalogueRepository);
   }
@@ -58,6 +68,14 @@ public class ApplicationConfiguration {
     return new LogInterceptor();
   }
 
+  @Bean
+  @ConditionalOnProperty(name = "app.grpc.metrics.enabled", havingValue = "true", matchIfMissing = true)
+  public ServerInterceptor metricsInterceptor(MeterRegistry registry,
+                                              @Value("${app.grpc.metrics.slo:1ms,5ms,10ms,25ms,50ms,100ms,250ms,500ms,1s}")
+                                              List<Duration> slo) {
+    return new MetricsInterceptor(registry, slo);
+  }
+
   @Bean
   public GrpcServer grpcServer(@Value("${app.port:30323}") int port,
                                final List<BindableService> services,
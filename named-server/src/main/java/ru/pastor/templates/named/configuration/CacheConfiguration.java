@@ -2,42 +2,175 @@ package ru.pastor.templates.named.configuration;
 
 import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.ReactiveSubscription.Message;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.CircuitBreaker;
+import ru.pastor.templates.named.cache.Coalescing;
+import ru.pastor.templates.named.cache.Counters;
+import ru.pastor.templates.named.cache.Database;
+import ru.pastor.templates.named.cache.Fallback;
+import ru.pastor.templates.named.cache.Invalidating;
+import ru.pastor.templates.named.cache.Journal;
+import ru.pastor.templates.named.cache.Keys;
 import ru.pastor.templates.named.cache.NamedCache;
 import ru.pastor.templates.named.cache.Redis;
+import ru.pastor.templates.named.cache.SingleFlight;
 import ru.pastor.templates.named.repository.CatalogueRepository;
+import ru.pastor.templates.named.repository.CounterRepository;
 import ru.pastor.templates.named.repository.entity.CatalogueEntity;
+import ru.pastor.templates.named.repository.entity.CounterEntity;
+import ru.pastor.templates.named.service.NamedCountNotification;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.UUID;
 
 @Slf4j
 @Configuration
 public class CacheConfiguration {
+  /**
+   * Канал Redis, через который узлы сообщают друг другу об изменении значений счетчиков.
+   */
+  private static final String INVALIDATION_CHANNEL = "named:invalidate";
 
   @Bean("NamedCache.Redis")
-  public NamedCache<String, Integer> redisNamedCache(ReactiveRedisOperations<String, Number> operations) {
-    return new Redis(operations);
+  public NamedCache<String, Long> redisNamedCache(ReactiveRedisOperations<String, Number> operations,
+                                                  @Value("${app.cache.redis.layout:string}") String layout,
+                                                  @Value("${app.cache.redis.publish-increments:false}") boolean publish,
+                                                  @Value("${app.stream.strategy:NUMBER}") String strategy,
+                                                  @Value("${app.cache.redis.restore.concurrency:4}") int concurrency,
+                                                  CounterRepository counterRepository,
+                                                  MeterRegistry registry) {
+    Redis.Layout redisLayout = Redis.Layout.of(layout);
+    log.info("Values are stored in Redis with {} layout", redisLayout);
+    String stream = null;
+    if (publish && "string".equalsIgnoreCase(strategy)) {
+      log.info("Increments are published to {} by Lua script", NamedCountNotification.NamedStream.STREAM_KEY);
+      stream = NamedCountNotification.NamedStream.STREAM_KEY;
+    } else if (publish) {
+      log.warn("Increments can be published by Lua script only with string stream strategy, current is {}", strategy);
+    }
+    NamedCache<String, Long> restore = new NamedCache.ReadOnly<>() {
+      @Override
+      public Mono<Long> get(String key) {
+        return counterRepository.get(Keys.counterId(key), Keys.userId(key))
+          .map(CounterEntity::value);
+      }
+    };
+    return new Redis(operations, redisLayout, stream, restore, new SingleFlight<>("redis_restore", concurrency, registry));
   }
 
   @Bean("NamedCache.Values")
-  public NamedCache<String, Integer> valuesNamedCache(MeterRegistry registry,
-                                                      @Qualifier("NamedCache.Redis") NamedCache<String, Integer> redisCache) {
-    return new NamedCache.Local<>("values", Duration.ofHours(1), registry, redisCache, null);
+  public NamedCache<String, Long> valuesNamedCache(MeterRegistry registry,
+                                                   @Qualifier("NamedCache.Redis") NamedCache<String, Long> redisCache,
+                                                   @Value("${app.cache.values.coalesce-window:0ms}") Duration window,
+                                                   @Value("${app.cache.values.size:100000}") long size,
+                                                   @Value("${app.cache.values.expire:1h}") Duration expire,
+                                                   @Value("${app.cache.values.refresh:1m}") Duration refresh,
+                                                   @Value("${app.cache.values.invalidation.enabled:false}") boolean invalidation,
+                                                   @Value("${app.cache.values.invalidation.window:10ms}") Duration invalidationWindow,
+                                                   @Value("${app.cache.redis.fallback.enabled:false}") boolean fallback,
+                                                   @Value("${app.cache.redis.fallback.failures:5}") int failures,
+                                                   @Value("${app.cache.redis.fallback.open-for:5s}") Duration openFor,
+                                                   ReactiveRedisMessageListenerContainer container,
+                                                   ReactiveRedisOperations<String, String> textOperations,
+                                                   CounterRepository counterRepository,
+                                                   ObjectProvider<Journal> journal) {
+    NamedCache<String, Long> source = redisCache;
+    if (fallback) {
+      log.info("Values fall back to the database after {} Redis failures for {}", failures, openFor);
+      source = new Fallback("values", source, new Database(counterRepository), journal.getIfAvailable(),
+        new CircuitBreaker(failures, openFor), registry);
+    }
+    if (!window.isZero() && !window.isNegative()) {
+      log.info("Values increments are coalesced within {}", window);
+      source = new Coalescing<>("values", window, registry, source);
+    }
+    NamedCache<String, Long> local = new NamedCache.Async<>("values", size, expire, refresh, registry, source, null);
+    if (!invalidation) {
+      return local;
+    }
+    String node = UUID.randomUUID().toString();
+    log.info("Values are invalidated across nodes through {} as node {}", INVALIDATION_CHANNEL, node);
+    Flux<String> messages = container.receive(ChannelTopic.of(INVALIDATION_CHANNEL))
+      .map(Message::getMessage)
+      .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+        .maxBackoff(Duration.ofSeconds(30)));
+    return new Invalidating<>("values", node, local, messages,
+      message -> textOperations.convertAndSend(INVALIDATION_CHANNEL, message), invalidationWindow, registry);
+  }
+
+  @Bean
+  public Counters counters(@Qualifier("NamedCache.Values") NamedCache<String, Long> values) {
+    return new Counters.Standard(values);
+  }
+
+  /**
+   * Журнал увеличений, принятых при недоступном Redis.
+   * Каталог журнала задается абсолютным путем: записи должны пережить перезапуск узла, поэтому в контейнере
+   * каталог монтируется как том (VOLUME /var/lib/named-server/journal в Dockerfile).
+   */
+  @Bean
+  @ConditionalOnProperty(name = "app.cache.redis.fallback.journal.enabled", havingValue = "true")
+  public Journal valuesJournal(MeterRegistry registry,
+                               @Value("${app.cache.redis.fallback.journal.directory}") String directory,
+                               @Value("${app.cache.redis.fallback.journal.segment-size:64MB}") DataSize segmentSize,
+                               @Value("${app.cache.redis.fallback.journal.max-segments:16}") int maxSegments) throws IOException {
+    Path path = Path.of(directory);
+    if (!path.isAbsolute()) {
+      throw new IllegalArgumentException("Journal directory must be an absolute path to a mounted volume: " + directory);
+    }
+    log.info("Increments are journaled in {} while Redis is unavailable", path);
+    return new Journal("values", path, segmentSize.toBytes(), maxSegments, registry);
   }
 
   @Bean("NamedCache.Catalogue")
   public NamedCache<String, Integer> catalogueNamedCache(MeterRegistry registry,
-                                                         CatalogueRepository repository) {
-    return new NamedCache.Local<>("catalogue", Duration.ofHours(4), registry, new NamedCache.ReadOnly<>() {
+                                                         CatalogueRepository repository,
+                                                         @Value("${app.cache.catalogue.size:100000}") long size,
+                                                         @Value("${app.cache.catalogue.expire:4h}") Duration expire,
+                                                         @Value("${app.cache.catalogue.refresh:10m}") Duration refresh) {
+    return new NamedCache.Async<>("catalogue", size, expire, refresh, registry, new NamedCache.ReadOnly<>() {
       @Override
       public Mono<Integer> get(String key) {
         return repository.get(key).map(CatalogueEntity::id);
       }
-    }, entry ->
+    }, null);
+  }
+
+  @Bean("NamedCache.CatalogueNames")
+  public NamedCache<Integer, String> catalogueNamesNamedCache(MeterRegistry registry,
+                                                              CatalogueRepository repository,
+                                                              @Value("${app.cache.catalogue.size:100000}") long size,
+                                                              @Value("${app.cache.catalogue.expire:4h}") Duration expire,
+                                                              @Value("${app.cache.catalogue.refresh:10m}") Duration refresh) {
+    return new NamedCache.Async<>("catalogue_names", size, expire, refresh, registry, new NamedCache.ReadOnly<>() {
+      @Override
+      public Mono<String> get(Integer key) {
+        return repository.get(key.intValue()).map(CatalogueEntity::name);
+      }
+    }, null);
+  }
+
+  @Bean
+  public CatalogueIndex catalogueIndex(@Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue,
+                                       @Qualifier("NamedCache.CatalogueNames") NamedCache<Integer, String> names,
+                                       CatalogueRepository repository) {
+    return new CatalogueIndex.Standard(catalogue, names, entry ->
       repository.counters(new CatalogueRepository.Filter())
         .map(e -> {
           entry.apply(e.name(), e.id());
@@ -0,0 +1,194 @@
+package ru.pastor.templates.named.configuration;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import ru.pastor.templates.named.server.grpc.CatalogueReplyList;
+import ru.pastor.templates.named.server.grpc.CatalogueReplyValue;
+import ru.pastor.templates.named.server.grpc.CountValue;
+import ru.pastor.templates.named.server.grpc.CountValueBatch;
+import ru.pastor.templates.named.server.grpc.Status;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Метрики вызовов gRPC на стороне сервера с разбивкой по методам.
+ * Время вызова отсчитывается от его приема сервером до закрытия, поэтому включает ожидание внутри
+ * сервера, которое не видно по метрикам отдельных кэшей. Для времени вызова строится гистограмма
+ * с заданными границами (SLO), по которой считается доля вызовов, уложившихся в каждую границу.
+ * <p>
+ * Метрики:
+ * <ul>
+ *   <li>Grpc_server_call_time - время вызова с тегами method и code (код завершения gRPC);</li>
+ *   <li>Grpc_server_in_flight_count - количество выполняющихся вызовов метода;</li>
+ *   <li>Grpc_server_received_message_count и Grpc_server_sent_message_count - сообщения потоковых и обычных вызовов;</li>
+ *   <li>Grpc_server_reply_status_count - статусы ответов приложения (SUCCESS, FAILURE, NOT_FOUND) с тегом status:
+ *   ошибки сервиса возвращаются в теле ответа с кодом gRPC OK и по коду завершения не видны.</li>
+ * </ul>
+ */
+public final class MetricsInterceptor implements ServerInterceptor {
+  /**
+   * Реестр метрик.
+   */
+  private final MeterRegistry registry;
+
+  /**
+   * Границы гистограммы времени вызова.
+   */
+  private final Duration[] slo;
+
+  /**
+   * Метрики методов по полному имени метода.
+   */
+  private final Map<String, Method> methods = new ConcurrentHashMap<>();
+
+  /**
+   * Создает перехватчик, регистрирующий метрики вызовов.
+   *
+   * @param registry реестр метрик
+   * @param slo      границы гистограммы времени вызова
+   */
+  public MetricsInterceptor(MeterRegistry registry, List<Duration> slo) {
+    this.registry = registry;
+    this.slo = slo.toArray(Duration[]::new);
+  }
+
+  /**
+   * Возвращает статус ответа приложения или null, если сообщение его не содержит.
+   */
+  private static Status status(Object message) {
+    if (message instanceof CountValue value) {
+      return value.getStatus();
+    }
+    if (message instanceof CatalogueReplyValue value) {
+      return value.getStatus();
+    }
+    if (message instanceof CatalogueReplyList value) {
+      return value.getStatus();
+    }
+    return null;
+  }
+
+  @Override
+  public <I, O> ServerCall.Listener<I> interceptCall(ServerCall<I, O> call, Metadata headers, ServerCallHandler<I, O> next) {
+    Method method = methods.computeIfAbsent(call.getMethodDescriptor().getFullMethodName(), Method::new);
+    Call monitored = new Call(method);
+    ServerCall<I, O> measured = new ForwardingServerCall.SimpleForwardingServerCall<>(call) {
+      @Override
+      public void sendMessage(O message) {
+        method.sent.increment();
+        if (message instanceof CountValueBatch batch) {
+          batch.getValuesList().forEach(value -> method.reply(value.getStatus()));
+        } else {
+          method.reply(status(message));
+        }
+        super.sendMessage(message);
+      }
+
+      @Override
+      public void close(io.grpc.Status status, Metadata trailers) {
+        monitored.finish(status.getCode());
+        super.close(status, trailers);
+      }
+    };
+    ServerCall.Listener<I> listener;
+    try {
+      listener = next.startCall(measured, headers);
+    } catch (RuntimeException e) {
+      monitored.finish(io.grpc.Status.Code.UNKNOWN);
+      throw e;
+    }
+    return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(listener) {
+      @Override
+      public void onMessage(I message) {
+        method.received.increment();
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onCancel() {
+        monitored.finish(io.grpc.Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  /**
+   * Метрики одного метода.
+   */
+  private final class Method {
+    private final String name;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Counter received;
+    private final Counter sent;
+    private final Map<io.grpc.Status.Code, Timer> times = new ConcurrentHashMap<>();
+    private final Map<Status, Counter> replies = new ConcurrentHashMap<>();
+
+    private Method(String name) {
+      this.name = name;
+      this.received = Counter.builder("Grpc_server_received_message_count")
+        .tag("method", name)
+        .register(registry);
+      this.sent = Counter.builder("Grpc_server_sent_message_count")
+        .tag("method", name)
+        .register(registry);
+      Gauge.builder("Grpc_server_in_flight_count", inFlight::get)
+        .tag("method", name)
+        .register(registry);
+    }
+
+    void reply(Status status) {
+      if (status == null) {
+        return;
+      }
+      replies.computeIfAbsent(status, s -> Counter.builder("Grpc_server_reply_status_count")
+          .tag("method", name)
+          .tag("status", s.name())
+          .register(registry))
+        .increment();
+    }
+
+    void complete(io.grpc.Status.Code code, long nanos) {
+      times.computeIfAbsent(code, c -> Timer.builder("Grpc_server_call_time")
+          .tag("method", name)
+          .tag("code", c.name())
+          .serviceLevelObjectives(slo)
+          .register(registry))
+        .record(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Один вызов: завершается один раз - закрытием сервером или отменой клиентом.
+   */
+  private static final class Call {
+    private final Method method;
+    private final long start = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    private Call(Method method) {
+      this.method = method;
+      method.inFlight.incrementAndGet();
+    }
+
+    void finish(io.grpc.Status.Code code) {
+      if (finished.compareAndSet(false, true)) {
+        method.inFlight.decrementAndGet();
+        method.complete(code, System.nanoTime() - start);
+      }
+    }
+  }
+}
@@ -2,7 +2,16 @@ package ru.pastor.templates.named.configuration;
 
 import io.lettuce.core.ClientOptions;
 import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.NettyCustomizer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -17,26 +26,37 @@ import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.listener.ReactiveRedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.RedisSerializationContext;
 import org.springframework.data.redis.serializer.RedisSerializer;
-import org.springframework.data.redis.serializer.SerializationException;
+import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.cache.RedisCodec;
+import ru.pastor.templates.named.cache.RedisFormat;
 
-import java.math.BigInteger;
 import java.time.Duration;
 
 @Slf4j
 @Configuration
 public class RedisConfiguration {
-  public static final NumberSerializer INSTANCE = new NumberSerializer();
+  public static final RedisSerializer<Number> INSTANCE = RedisCodec.NUMBER;
   private static final long COMMAND_TIMEOUT = 2000;
 
   @Bean
   @Primary
   public ReactiveRedisConnectionFactory redisConnectionFactory(@Value("${spring.data.redis.host}") String cacheHost,
                                                                @Value("${spring.data.redis.port:6379}") int cachePort,
-                                                               @Value("${spring.data.redis.db:13}") int cacheDatabase) {
+                                                               @Value("${spring.data.redis.db:13}") int cacheDatabase,
+                                                               @Value("${app.cache.redis.pipelining.enabled:false}") boolean pipelining,
+                                                               @Value("${app.cache.redis.pipelining.max-commands:64}") int maxCommands,
+                                                               MeterRegistry registry) {
+    var resources = ClientResources.builder();
+    if (pipelining) {
+      log.info("Redis commands are flushed together within an event loop tick, up to {} per flush", maxCommands);
+      resources.nettyCustomizer(new Pipelining(Math.max(1, maxCommands), DistributionSummary
+        .builder("Redis_commands_per_flush")
+        .register(registry)));
+    }
     var lettuceClientConfiguration = LettuceClientConfiguration.builder()
       .clientOptions(ClientOptions.builder().autoReconnect(true).build())
       .commandTimeout(Duration.ofMillis(COMMAND_TIMEOUT))
-      .clientResources(ClientResources.builder().build())
+      .clientResources(resources.build())
       .build();
     var conf = new RedisStandaloneConfiguration(cacheHost, cachePort);
     conf.setDatabase(cacheDatabase);
@@ -56,26 +76,85 @@ public class RedisConfiguration {
   @Bean
   public ReactiveRedisTemplate<String, Number> longRedisOperations(ReactiveRedisConnectionFactory factory) {
     return new ReactiveRedisTemplate<>(factory, RedisSerializationContext.<String, Number>newSerializationContext()
-      .key(RedisSerializer.string())
+      .key(RedisCodec.KEY)
       .value(RedisSerializationContext.SerializationPair.fromSerializer(INSTANCE))
-      .hashKey(RedisSerializer.string())
+      .hashKey(RedisCodec.KEY)
       .hashValue(RedisSerializationContext.SerializationPair.fromSerializer(INSTANCE))
       .build());
   }
 
-  private static final class NumberSerializer implements RedisSerializer<Number> {
+  /**
+   * Проверяет формат значений счетчиков в Redis при запуске, до приема запросов.
+   * С app.cache.redis.format.migrate=true значения прежнего двоичного формата переписываются десятичной записью,
+   * а ошибка перехода останавливает запуск. Без перехода значения прежнего формата не читаются.
+   */
+  @Bean
+  public SmartInitializingSingleton redisValuesFormat(ReactiveRedisConnectionFactory factory,
+                                                      @Value("${app.cache.redis.format.migrate:false}") boolean migrate) {
+    var format = new RedisFormat(new ReactiveRedisTemplate<>(factory, RedisSerializationContext
+      .<String, byte[]>newSerializationContext(RedisSerializer.byteArray())
+      .key(RedisCodec.KEY)
+      .hashKey(RedisCodec.KEY)
+      .build()));
+    return () -> {
+      if (migrate) {
+        log.info("{} counter values in Redis are rewritten in the decimal format", format.migrate().block());
+        return;
+      }
+      format.check()
+        .doOnNext(decimal -> {
+          if (!decimal) {
+            log.error("Counter values in Redis have no {} marker, values in the legacy format fail to read. " +
+              "Stop the previous version and start one node with app.cache.redis.format.migrate=true", RedisFormat.KEY);
+          }
+        })
+        .onErrorResume(throwable -> {
+          log.warn("Can't check the format of counter values in Redis: {}", throwable.getMessage());
+          return Mono.empty();
+        })
+        .subscribe();
+    };
+  }
+
+  /**
+   * Объединяет сброс в сокет команд, записанных в соединение в течение одного такта цикла событий Netty.
+   * Lettuce сбрасывает каждую команду отдельно; при большом потоке команд это лишние системные вызовы
+   * и пакеты. Команды сбрасываются вместе, но не больше maxCommands за раз, чтобы не копить задержку.
+   */
+  private record Pipelining(int maxCommands, DistributionSummary commandsPerFlush) implements NettyCustomizer {
 
     @Override
-    public byte[] serialize(Number value) throws SerializationException {
-      if (value == null) {
-        return null;
-      }
-      return BigInteger.valueOf(value.longValue()).toByteArray();
+    public void afterChannelInitialized(Channel channel) {
+      channel.pipeline().addFirst(new FlushConsolidationHandler(maxCommands, true));
+      channel.pipeline().addFirst(new FlushSize(commandsPerFlush));
+    }
+  }
+
+  /**
+   * Считает количество записей, ушедших в сокет одним сбросом.
+   * Стоит в конвейере ближе к сокету, чем {@link FlushConsolidationHandler}, поэтому видит уже объединенные сбросы.
+   */
+  private static final class FlushSize extends ChannelOutboundHandlerAdapter {
+    private final DistributionSummary commandsPerFlush;
+    private int writes;
+
+    private FlushSize(DistributionSummary commandsPerFlush) {
+      this.commandsPerFlush = commandsPerFlush;
     }
 
     @Override
-    public Number deserialize(byte[] bytes) throws SerializationException {
-      return new BigInteger(bytes).intValue();
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+      writes++;
+      super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+      if (writes > 0) {
+        commandsPerFlush.record(writes);
+        writes = 0;
+      }
+      super.flush(ctx);
     }
   }
 }
@@ -1,16 +1,23 @@
 package ru.pastor.templates.named.repository;
 
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
 import io.r2dbc.spi.Row;
 import io.r2dbc.spi.RowMetadata;
-import lombok.RequiredArgsConstructor;
+import io.r2dbc.spi.Wrapped;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.reactive.TransactionalOperator;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import ru.pastor.templates.named.repository.entity.CatalogueEntity;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.Objects;
 import java.util.logging.Level;
@@ -37,10 +44,27 @@ public interface CatalogueRepository {
    */
   Mono<CatalogueEntity> get(String name);
 
+  /**
+   * Получает элемент каталога по его идентификатору.
+   *
+   * @param id идентификатор элемента каталога
+   * @return элемент каталога в виде Mono или пустой Mono, если элемент не найден
+   */
+  Mono<CatalogueEntity> get(int id);
+
   Mono<CatalogueEntity> create(String name, String description, Long defaultValue);
 
   Mono<CatalogueEntity> update(long id, String name, String description, Long defaultValue);
 
+  /**
+   * Получает изменения соответствия имен и идентификаторов каталога, сделанные любым узлом.
+   * При каждом подключении сначала отдаются все элементы каталога, чтобы не потерять изменения,
+   * сделанные, пока подписки не было.
+   *
+   * @return бесконечный поток изменений или пустой поток, если уведомления выключены
+   */
+  Flux<Change> changes();
+
   /**
    * Запись для фильтрации элементов каталога.
    * В текущей реализации не содержит параметров фильтрации.
@@ -48,13 +72,41 @@ public interface CatalogueRepository {
   record Filter() {
   }
 
+  /**
+   * Изменение каталога: счетчик с идентификатором теперь называется name.
+   *
+   * @param id   идентификатор счетчика
+   * @param name имя счетчика
+   */
+  record Change(int id, String name) {
+    /**
+     * Разбирает полезную нагрузку уведомления вида "id:name".
+     * Имя может содержать двоеточие, поэтому разделителем считается первое.
+     */
+    static Change parse(String payload) {
+      int separator = payload.indexOf(':');
+      return new Change(Integer.parseInt(payload.substring(0, separator)), payload.substring(separator + 1));
+    }
+
+    /**
+     * Формирует полезную нагрузку уведомления вида "id:name".
+     */
+    String payload() {
+      return id + ":" + name;
+    }
+  }
+
   /**
    * Реализация репозитория каталога для PostgreSQL с использованием реактивного доступа к данным.
    */
   @Slf4j
-  @RequiredArgsConstructor
   @Service("CatalogueRepository.Postgres")
   class Postgres implements CatalogueRepository {
+    /**
+     * Канал PostgreSQL, в который отправляются уведомления об изменении каталога.
+     */
+    public static final String CHANNEL = "named_catalogue";
+
     /**
      * Клиент для работы с базой данных в реактивном стиле.
      */
@@ -65,6 +117,27 @@ public interface CatalogueRepository {
      */
     private final TransactionalOperator tx;
 
+    /**
+     * Фабрика соединений для подписки на уведомления.
+     */
+    private final ConnectionFactory factory;
+
+    /**
+     * Отправлять ли уведомления об изменениях и подписываться на них.
+     * Уведомления поддерживает только PostgreSQL.
+     */
+    private final boolean notify;
+
+    public Postgres(DatabaseClient client,
+                    TransactionalOperator tx,
+                    ConnectionFactory factory,
+                    @Value("${app.catalogue.notify.enabled:false}") boolean notify) {
+      this.client = client;
+      this.tx = tx;
+      this.factory = factory;
+      this.notify = notify;
+    }
+
     /**
      * Преобразует строку результата запроса в объект CatalogueEntity.
      *
@@ -112,6 +185,20 @@ public interface CatalogueRepository {
         .as(tx::transactional);
     }
 
+    /**
+     * {@inheritDoc}
+     * Получает элемент каталога по идентификатору из базы данных.
+     */
+    @Override
+    public Mono<CatalogueEntity> get(int id) {
+      return client
+        .sql("SELECT id, name, description, default_value, created, updated FROM named.counter_catalogue WHERE id = :id")
+        .bind("id", id)
+        .map(Postgres::map)
+        .first()
+        .as(tx::transactional);
+    }
+
     @Override
     public Mono<CatalogueEntity> create(String name, String description, Long defaultValue) {
       var spec = client.sql("INSERT INTO named.counter_catalogue(name, description, default_value) " +
@@ -130,6 +217,7 @@ public interface CatalogueRepository {
           .defaultValue(finalDefaultValue)
           .build())
         .one()
+        .flatMap(this::publish)
         .log("CATALOGUE", Level.ALL, true)
         .as(tx::transactional);
     }
@@ -161,6 +249,7 @@ public interface CatalogueRepository {
             return Mono.just(rowsUpdated);
           })
           .flatMap(rowsUpdated -> get(name))
+          .flatMap(this::publish)
           .as(tx::transactional);
       } else if (description != null) {
         return client.sql("UPDATE named.counter_catalogue SET description = :description, updated = CURRENT_TIMESTAMP WHERE id = :id")
@@ -181,5 +270,56 @@ public interface CatalogueRepository {
       }
       return Mono.empty();
     }
+
+    /**
+     * {@inheritDoc}
+     * Слушает канал {@link #CHANNEL} на отдельном соединении в обход пула: соединение с LISTEN
+     * занято все время работы узла. При разрыве соединения подписка восстанавливается.
+     * Уведомления, пришедшие во время чтения каталога, могут прийти раньше более старых строк каталога;
+     * это допустимо, так как переименования редки и следующее уведомление исправит расхождение.
+     */
+    @Override
+    public Flux<Change> changes() {
+      if (!notify) {
+        return Flux.empty();
+      }
+      ConnectionFactory target = factory instanceof Wrapped<?> wrapped ?
+        (ConnectionFactory) wrapped.unwrap() :
+        factory;
+      return Flux.usingWhen(target.create(), this::listen, Connection::close)
+        .repeatWhen(completed -> completed.delayElements(Duration.ofSeconds(1)))
+        .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+          .maxBackoff(Duration.ofSeconds(30))
+          .doBeforeRetry(signal -> log.warn("Catalogue notifications lost: {}", signal.failure().getMessage())));
+    }
+
+    private Flux<Change> listen(Connection connection) {
+      if (!(connection instanceof PostgresqlConnection postgres)) {
+        return Flux.error(new IllegalStateException("Catalogue notifications require PostgreSQL"));
+      }
+      Flux<Change> notifications = postgres.getNotifications()
+        .filter(notification -> CHANNEL.equals(notification.getName()) && notification.getParameter() != null)
+        .map(notification -> Change.parse(notification.getParameter()));
+      return postgres.createStatement("LISTEN " + CHANNEL)
+        .execute()
+        .flatMap(PostgresqlResult::getRowsUpdated)
+        .thenMany(Flux.merge(notifications, counters(new Filter())
+          .map(entity -> new Change(entity.id(), entity.name()))));
+    }
+
+    /**
+     * Отправляет уведомление об изменении элемента каталога.
+     * Уведомление выполняется в транзакции изменения и доставляется только после ее фиксации.
+     */
+    private Mono<CatalogueEntity> publish(CatalogueEntity entity) {
+      if (!notify) {
+        return Mono.just(entity);
+      }
+      return client.sql("SELECT pg_notify(:channel, :payload)")
+        .bind("channel", CHANNEL)
+        .bind("payload", new Change(entity.id(), entity.name()).payload())
+        .then()
+        .thenReturn(entity);
+    }
   }
 }
@@ -7,11 +7,16 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.pastor.templates.named.repository.entity.CatalogueEntity;
 import ru.pastor.templates.named.repository.entity.CounterEntity;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Репозиторий для работы со счетчиками в базе данных.
@@ -28,6 +33,18 @@ public interface CounterRepository {
    */
   Mono<CounterEntity> get(long counterId, long userId);
 
+  /**
+   * Получает страницу счетчиков пользователя, упорядоченных по идентификатору счетчика.
+   * Страницы выбираются по ключу: следующая страница начинается после последнего идентификатора предыдущей.
+   *
+   * @param userId         идентификатор пользователя
+   * @param prefix         префикс имени счетчика в каталоге; пустая строка означает все счетчики
+   * @param afterCounterId идентификатор счетчика, после которого начинается страница
+   * @param limit          максимальный размер страницы
+   * @return поток счетчиков страницы
+   */
+  Flux<CounterEntity> list(long userId, String prefix, long afterCounterId, int limit);
+
   /**
    * Создает новый счетчик с указанным начальным значением.
    *
@@ -48,6 +65,27 @@ public interface CounterRepository {
    */
   Mono<CounterEntity> update(long counterId, long userId, long newValue);
 
+  /**
+   * Атомарно увеличивает значение счетчика в базе данных одним запросом.
+   * Если значения еще нет, оно создается равным величине увеличения.
+   *
+   * @param counterId идентификатор счетчика
+   * @param userId    идентификатор пользователя
+   * @param delta     величина увеличения
+   * @return новое значение счетчика в виде Mono
+   */
+  Mono<Long> increment(long counterId, long userId, long delta);
+
+  /**
+   * Записывает пакет значений счетчиков многострочными запросами INSERT ... ON CONFLICT DO UPDATE в одной транзакции.
+   * Пакет делится на запросы так, чтобы число параметров запроса не превышало предел PostgreSQL.
+   * Если в пакете несколько значений одного счетчика пользователя, записывается последнее из них.
+   *
+   * @param changes новые значения счетчиков
+   * @return количество записанных строк в виде Mono
+   */
+  Mono<Long> upsertAll(List<Change> changes);
+
   /**
    * Обновляет существующий счетчик или создает новый, если счетчик не найден.
    *
@@ -61,6 +99,16 @@ public interface CounterRepository {
       .switchIfEmpty(create(counterId, userId, newValue));
   }
 
+  /**
+   * Новое значение счетчика пользователя для пакетной записи.
+   *
+   * @param counterId идентификатор счетчика
+   * @param userId    идентификатор пользователя
+   * @param value     новое значение счетчика
+   */
+  record Change(long counterId, long userId, long value) {
+  }
+
   /**
    * Реализация репозитория счетчиков для PostgreSQL с использованием реактивного доступа к данным.
    */
@@ -68,6 +116,12 @@ public interface CounterRepository {
   @RequiredArgsConstructor
   @Service("CounterRepository.Postgres")
   class Postgres implements CounterRepository {
+    /**
+     * Наибольшее количество строк в одном запросе пакетной записи: у строки три параметра,
+     * а протокол PostgreSQL ограничивает запрос 65535 параметрами.
+     */
+    private static final int UPSERT_ROWS = 65535 / 3;
+
     /**
      * Клиент для работы с базой данных в реактивном стиле.
      */
@@ -124,6 +178,38 @@ public interface CounterRepository {
         .as(tx::transactional);
     }
 
+    /**
+     * {@inheritDoc}
+     * Использует индекс (user_id, counter_id), поэтому стоимость страницы не зависит от ее номера.
+     */
+    @Override
+    public Flux<CounterEntity> list(long userId, String prefix, long afterCounterId, int limit) {
+      return client
+        .sql("SELECT cv.id, cv.counter_id, cv.user_id, cv.\"value\", cv.created, cv.updated, " +
+          "cc.name, cc.description, cc.default_value, cc.created as catalogue_created, cc.updated as catalogue_updated " +
+          "FROM named.counter_values cv " +
+          "JOIN named.counter_catalogue cc ON cv.counter_id = cc.id " +
+          "WHERE cv.user_id = :userId AND cv.counter_id > :afterCounterId AND cc.name LIKE :prefix " +
+          "ORDER BY cv.counter_id " +
+          "LIMIT :limit")
+        .bind("userId", userId)
+        .bind("afterCounterId", afterCounterId)
+        .bind("prefix", like(prefix))
+        .bind("limit", limit)
+        .map(Postgres::map)
+        .all()
+        .as(tx::transactional);
+    }
+
+    /**
+     * Формирует шаблон LIKE для поиска по префиксу, экранируя служебные символы.
+     */
+    private static String like(String prefix) {
+      return prefix.replace("\\", "\\\\")
+        .replace("%", "\\%")
+        .replace("_", "\\_") + "%";
+    }
+
     /**
      * {@inheritDoc}
      * Создает новую запись счетчика в базе данных и возвращает созданный объект.
@@ -164,5 +250,90 @@ public interface CounterRepository {
         .switchIfEmpty(create(counterId, userId, newValue))
         .as(tx::transactional);
     }
+
+    /**
+     * {@inheritDoc}
+     * Увеличение выполняется в базе данных, поэтому одновременные увеличения разных узлов не теряются.
+     */
+    @Override
+    public Mono<Long> increment(long counterId, long userId, long delta) {
+      return client
+        .sql("INSERT INTO named.counter_values(counter_id, user_id, \"value\") " +
+          "VALUES (:counterId, :userId, :delta) ON CONFLICT (counter_id, user_id) DO UPDATE " +
+          "SET \"value\" = named.counter_values.\"value\" + EXCLUDED.value, updated = CURRENT_TIMESTAMP " +
+          "RETURNING \"value\"")
+        .bind("counterId", counterId)
+        .bind("userId", userId)
+        .bind("delta", delta)
+        .map(row -> row.get("value", Long.class))
+        .one()
+        .as(tx::transactional);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Повторы одного счетчика пользователя схлопываются до последнего значения только здесь:
+     * PostgreSQL не позволяет одному INSERT ... ON CONFLICT изменить строку дважды,
+     * а вызывающие передают пачки как есть.
+     */
+    @Override
+    public Mono<Long> upsertAll(List<Change> changes) {
+      if (changes.isEmpty()) {
+        return Mono.just(0L);
+      }
+      return Flux.fromIterable(chunks(changes, UPSERT_ROWS))
+        .concatMap(this::upsert)
+        .reduce(0L, Long::sum)
+        .as(tx::transactional);
+    }
+
+    /**
+     * Схлопывает повторы счетчика пользователя до последнего значения и делит строки на запросы.
+     *
+     * @param changes новые значения счетчиков
+     * @param rows    наибольшее количество строк в одном запросе
+     * @return строки запросов в порядке первого появления счетчика пользователя в пакете
+     */
+    static List<List<Change>> chunks(List<Change> changes, int rows) {
+      Map<Key, Change> latest = new LinkedHashMap<>();
+      for (Change change : changes) {
+        latest.put(new Key(change.counterId(), change.userId()), change);
+      }
+      List<Change> unique = new ArrayList<>(latest.values());
+      List<List<Change>> chunks = new ArrayList<>((unique.size() + rows - 1) / rows);
+      for (int from = 0; from < unique.size(); from += rows) {
+        chunks.add(unique.subList(from, Math.min(unique.size(), from + rows)));
+      }
+      return chunks;
+    }
+
+    /**
+     * Записывает строки одним запросом INSERT ... ON CONFLICT.
+     */
+    private Mono<Long> upsert(List<Change> rows) {
+      var sql = new StringBuilder("INSERT INTO named.counter_values(counter_id, user_id, \"value\") VALUES ");
+      for (int i = 0; i < rows.size(); i++) {
+        if (i > 0) {
+          sql.append(", ");
+        }
+        sql.append("(:counterId").append(i).append(", :userId").append(i).append(", :value").append(i).append(')');
+      }
+      sql.append(" ON CONFLICT (counter_id, user_id) DO UPDATE SET \"value\" = EXCLUDED.value, updated = CURRENT_TIMESTAMP");
+      var spec = client.sql(sql.toString());
+      int i = 0;
+      for (Change change : rows) {
+        spec = spec.bind("counterId" + i, change.counterId())
+          .bind("userId" + i, change.userId())
+          .bind("value" + i, change.value());
+        i++;
+      }
+      return spec.fetch().rowsUpdated();
+    }
+
+    /**
+     * Ключ строки counter_values.
+     */
+    private record Key(long counterId, long userId) {
+    }
   }
 }
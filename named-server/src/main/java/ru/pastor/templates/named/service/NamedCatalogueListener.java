@@ -0,0 +1,38 @@
+package ru.pastor.templates.named.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.repository.CatalogueRepository;
+
+/**
+ * Поддерживает индекс каталога в актуальном состоянии по уведомлениям об изменениях каталога.
+ * Изменения, сделанные любым узлом, применяются сразу, поэтому каталог не нужно периодически перечитывать.
+ */
+@Slf4j
+@RequiredArgsConstructor
+@Service("NamedCatalogueListener")
+public class NamedCatalogueListener {
+  /**
+   * Репозиторий, поставляющий изменения каталога.
+   */
+  private final CatalogueRepository repository;
+
+  /**
+   * Индекс каталога, к которому применяются изменения.
+   */
+  private final CatalogueIndex catalogue;
+
+  @EventListener(ApplicationReadyEvent.class)
+  private void ready() {
+    repository.changes()
+      .concatMap(change -> catalogue.apply(change.name(), change.id())
+        .doOnError(throwable -> log.error("Can't apply catalogue change {}", change, throwable))
+        .onErrorResume(throwable -> Mono.empty()))
+      .subscribe();
+  }
+}
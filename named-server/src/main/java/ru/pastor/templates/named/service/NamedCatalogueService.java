@@ -4,7 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import ru.pastor.templates.named.cache.NamedCache;
+import ru.pastor.templates.named.cache.CatalogueIndex;
 import ru.pastor.templates.named.mapper.CatalogueMapper;
 import ru.pastor.templates.named.model.CatalogueModel;
 import ru.pastor.templates.named.repository.CatalogueRepository;
@@ -49,15 +49,15 @@ public interface NamedCatalogueService {
 
   /**
    * Стандартная реализация сервиса каталога счетчиков.
-   * Использует кэш для хранения информации о счетчиках и репозиторий для доступа к базе данных.
+   * Использует индекс каталога для поиска счетчиков по имени и репозиторий для доступа к базе данных.
    */
   @Slf4j
   @RequiredArgsConstructor
   final class Standard implements NamedCatalogueService {
     /**
-     * Кэш для хранения каталога счетчиков.
+     * Индекс каталога счетчиков.
      */
-    private final NamedCache<String, Integer> catalogue;
+    private final CatalogueIndex catalogue;
 
     /**
      * Репозиторий для доступа к каталогу счетчиков в базе данных.
@@ -66,21 +66,23 @@ public interface NamedCatalogueService {
 
     /**
      * {@inheritDoc}
-     * Получает информацию о счетчике из кэша по его имени.
-     * Если информация отсутствует в кэше, обращается к репозиторию.
+     * Получает информацию о счетчике из индекса каталога по его имени.
+     * Если имени нет в индексе, обращается к репозиторию.
      */
     @Override
     public Mono<CatalogueModel> get(String name) {
-      return catalogue.get(name)
-        .map(id -> CatalogueModel.builder()
+      int id = catalogue.id(name);
+      if (id != CatalogueIndex.MISSING) {
+        return Mono.just(CatalogueModel.builder()
           .information(CatalogueModel.Information.builder()
-            .id(id.longValue())
+            .id((long) id)
             .name(name)
             .build())
-          .build())
-        .switchIfEmpty(catalogueRepository.get(name)
-          .flatMap(entity -> catalogue.update(name, entity.id())
-            .thenReturn(CatalogueMapper.INSTANCE.toModel(entity))));
+          .build());
+      }
+      return catalogueRepository.get(name)
+        .doOnNext(entity -> catalogue.put(name, entity.id()))
+        .map(CatalogueMapper.INSTANCE::toModel);
     }
 
     /**
@@ -103,20 +105,25 @@ public interface NamedCatalogueService {
         .flatMap(entity -> {
           //FIXME: Если такой счетчик в каталоге существует, то надо его обновить
           //       сделать merge по полям
-          int id = entity.id();
-          return catalogue.update(name, id)
-            .thenReturn(CatalogueMapper.INSTANCE.toModel(entity));
+          catalogue.put(name, entity.id());
+          return Mono.just(CatalogueMapper.INSTANCE.toModel(entity));
         })
         .switchIfEmpty(Mono.defer(() -> catalogueRepository.create(name, description, defaultValue)
-          .flatMap(entity -> catalogue.update(name, entity.id())
-            .thenReturn(CatalogueMapper.INSTANCE.toModel(entity)))));
+          .doOnNext(entity -> catalogue.put(name, entity.id()))
+          .map(CatalogueMapper.INSTANCE::toModel)));
     }
 
+    /**
+     * {@inheritDoc}
+     * При переименовании прежнее имя удаляется из индекса каталога, чтобы оно больше не разрешалось в этот счетчик.
+     */
     @Override
     public Mono<CatalogueModel> update(long id, Optional<String> name, Optional<String> description,
                                        Optional<Long> defaultValue) {
       return catalogueRepository.update(id, name.orElse(null),
           description.orElse(null), defaultValue.orElse(null))
+        .flatMap(entity -> catalogue.apply(entity.name(), entity.id())
+          .thenReturn(entity))
         .map(CatalogueMapper.INSTANCE::toModel)
         .switchIfEmpty(Mono.error(new IllegalArgumentException("Can't update")));
     }
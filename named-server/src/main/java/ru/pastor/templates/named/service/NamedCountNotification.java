@@ -1,14 +1,27 @@
 package ru.pastor.templates.named.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
 import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
 import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
 import org.springframework.data.redis.connection.stream.ReadOffset;
 import org.springframework.data.redis.connection.stream.Record;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.connection.stream.StreamReadOptions;
 import org.springframework.data.redis.connection.stream.StreamRecords;
@@ -23,8 +36,13 @@ import ru.pastor.templates.named.configuration.RedisConfiguration;
 import ru.pastor.templates.named.repository.CounterRepository;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public interface NamedCountNotification {
   Mono<Void> update(long userId, long counterId, long value);
@@ -34,19 +52,176 @@ public interface NamedCountNotification {
   @Slf4j
   @Service("NamedStream")
   class NamedStream implements NamedCountNotification {
-    private static final String STREAM_KEY = "counter_updates";
+    /**
+     * Ключ стрима изменений счетчиков.
+     */
+    public static final String STREAM_KEY = "counter_updates";
     private static final String STREAM_GROUP_KEY = "counter-updates-group";
     private static final String STREAM_CONSUMER_KEY = "counter-updates-consumer-id";
+    private static final int DEFAULT_BATCH_SIZE = 100;
     private final ReactiveRedisTemplate<String, ?> template;
     private final CounterRepository repository;
     private final ChangeValue.Strategy strategy;
+    private final BatchSize batchSize;
 
+    /**
+     * Количество сообщений стрима, прочитанных для записи в базу.
+     */
+    private final Counter received;
+
+    /**
+     * Количество сообщений стрима, не записанных в базу, потому что в той же пачке есть более новое
+     * значение того же счетчика пользователя. Повторы схлопывает {@link CounterRepository#upsertAll},
+     * поэтому количество определяется по числу записанных строк.
+     */
+    private final Counter compacted;
+
+    /**
+     * Количество сообщений стрима, которые не удалось разобрать выбранной стратегией.
+     */
+    private final Counter parseFailures;
+
+    /**
+     * Количество значений, которые база отвергла при построчной записи пачки (например, из-за нарушения
+     * внешнего ключа). Такие значения не записываются, а их сообщения подтверждаются.
+     */
+    private final Counter rejected;
+
+    /**
+     * Количество сообщений в прочитанной пачке.
+     */
+    private final DistributionSummary batchRecords;
+
+    /**
+     * Время записи пачки в PostgreSQL.
+     */
+    private final Timer persistTime;
+
+    /**
+     * Количество сообщений стрима, еще не прочитанных группой, или -1, если Redis его не сообщает.
+     */
+    private final AtomicLong lag = new AtomicLong(-1);
+
+    /**
+     * Количество прочитанных, но не подтвержденных сообщений группы.
+     */
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * Возраст самого старого незаписанного в базу сообщения в миллисекундах.
+     */
+    private final AtomicLong oldestAge = new AtomicLong();
+
+    /**
+     * Период опроса состояния группы для метрик отставания.
+     */
+    private final Duration backlogInterval;
+
+    /**
+     * Пауза перед повторной записью пачки после ошибки записи в базу.
+     */
+    private final Duration retryDelay;
+
+    /**
+     * Количество неудачных попыток записать пачку целиком, после которого она записывается построчно.
+     */
+    private final int maxAttempts;
+
+    /**
+     * Количество неудачных попыток записи подряд.
+     */
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    /**
+     * Читаются ли неподтвержденные сообщения этого потребителя вместо новых.
+     * Начинается с них, чтобы записать пачки, прочитанные до перезапуска.
+     */
+    private volatile boolean draining = true;
+
+    @Autowired
     public NamedStream(ReactiveRedisConnectionFactory factory,
                        CounterRepository repository,
-                       @Value("${app.stream.strategy:NUMBER}") String strategy) {
-      this.strategy = ChangeValue.ChangeStrategy.of(strategy.toUpperCase());
-      this.template = this.strategy.redisOperations(factory);
+                       MeterRegistry registry,
+                       @Value("${app.stream.strategy:NUMBER}") String strategy,
+                       @Value("${app.stream.batch.min:10}") int minBatchSize,
+                       @Value("${app.stream.batch.max:1000}") int maxBatchSize,
+                       @Value("${app.stream.batch.target-latency:100ms}") Duration targetLatency,
+                       @Value("${app.stream.metrics.backlog-interval:10s}") Duration backlogInterval,
+                       @Value("${app.stream.retry-delay:1s}") Duration retryDelay,
+                       @Value("${app.stream.max-attempts:3}") int maxAttempts) {
+      this(ChangeValue.ChangeStrategy.of(strategy.toUpperCase()), factory, repository, registry,
+        new BatchSize(minBatchSize, maxBatchSize, targetLatency), backlogInterval, retryDelay, maxAttempts);
+    }
+
+    private NamedStream(ChangeValue.ChangeStrategy strategy,
+                        ReactiveRedisConnectionFactory factory,
+                        CounterRepository repository,
+                        MeterRegistry registry,
+                        BatchSize batchSize,
+                        Duration backlogInterval,
+                        Duration retryDelay,
+                        int maxAttempts) {
+      this(strategy.redisOperations(factory), strategy, repository, registry, batchSize, backlogInterval, retryDelay,
+        maxAttempts);
+    }
+
+    NamedStream(ReactiveRedisTemplate<String, ?> template,
+                ChangeValue.ChangeStrategy strategy,
+                CounterRepository repository,
+                MeterRegistry registry,
+                BatchSize batchSize,
+                Duration backlogInterval,
+                Duration retryDelay,
+                int maxAttempts) {
+      this.strategy = strategy;
+      this.template = template;
       this.repository = repository;
+      this.batchSize = batchSize;
+      this.backlogInterval = backlogInterval;
+      this.retryDelay = retryDelay;
+      this.maxAttempts = Math.max(1, maxAttempts);
+      this.received = Counter.builder("Stream_" + STREAM_KEY + "_received_count")
+        .register(registry);
+      this.compacted = Counter.builder("Stream_" + STREAM_KEY + "_compacted_count")
+        .register(registry);
+      this.parseFailures = Counter.builder("Stream_" + STREAM_KEY + "_parse_failure_count")
+        .tag("strategy", strategy.name())
+        .register(registry);
+      this.rejected = Counter.builder("Stream_" + STREAM_KEY + "_rejected_count")
+        .register(registry);
+      this.batchRecords = DistributionSummary.builder("Stream_" + STREAM_KEY + "_batch_records")
+        .register(registry);
+      this.persistTime = Timer.builder("Stream_" + STREAM_KEY + "_persist_time")
+        .publishPercentileHistogram()
+        .register(registry);
+      Gauge.builder("Stream_" + STREAM_KEY + "_lag_count", () -> lag.get() < 0 ? Double.NaN : lag.get())
+        .register(registry);
+      Gauge.builder("Stream_" + STREAM_KEY + "_pending_count", pending::get)
+        .register(registry);
+      TimeGauge.builder("Stream_" + STREAM_KEY + "_oldest_age", oldestAge::get, TimeUnit.MILLISECONDS)
+        .register(registry);
+    }
+
+    /**
+     * Возвращает количество сообщений стрима, еще не прочитанных группой.
+     * Redis сообщает его начиная с версии 7.0 и не может вычислить после удаления сообщений из середины стрима.
+     *
+     * @param group состояние группы из XINFO GROUPS
+     * @return количество непрочитанных сообщений или -1, если оно неизвестно
+     */
+    static long lag(StreamInfo.XInfoGroup group) {
+      return group.getRaw().get("lag") instanceof Number value ? value.longValue() : -1;
+    }
+
+    /**
+     * Возвращает возраст сообщения по времени в его идентификаторе.
+     *
+     * @param id  идентификатор сообщения стрима
+     * @param now текущее время в миллисекундах
+     * @return возраст в миллисекундах, не меньше нуля
+     */
+    static long age(RecordId id, long now) {
+      return id.shouldBeAutoGenerated() ? 0 : Math.max(0, now - id.getTimestamp());
     }
 
     @EventListener(ApplicationReadyEvent.class)
@@ -55,19 +230,14 @@ public interface NamedCountNotification {
         .doOnError(throwable -> log.warn("{}:{} already exists", STREAM_KEY, STREAM_GROUP_KEY))
         .onErrorResume(throwable -> Mono.empty())
         .subscribe();
-      streamMessages(STREAM_GROUP_KEY, STREAM_CONSUMER_KEY)
-        .flatMap(message -> {
-          Optional<ChangeValue> read = strategy.read(message);
-          if (read.isPresent()) {
-            var changeValue = read.get();
-            if (log.isDebugEnabled()) {
-              log.debug("Change value for {}: {}", STREAM_KEY, changeValue);
-            }
-            return repository.update(changeValue.counterId, changeValue.userId, changeValue.value).then();
-          }
-          log.error("Message can't parsed: {}", message);
-          return Mono.empty();
-        })
+      streamBatches(STREAM_GROUP_KEY, STREAM_CONSUMER_KEY)
+        .subscribe();
+      Flux.interval(backlogInterval)
+        .concatMap(tick -> backlog()
+          .onErrorResume(throwable -> {
+            log.warn("Can't sample {} backlog: {}", STREAM_KEY, throwable.getMessage());
+            return Mono.empty();
+          }))
         .subscribe();
     }
 
@@ -84,14 +254,13 @@ public interface NamedCountNotification {
       return update(userId, ci, i);
     }
 
-    @SuppressWarnings("unchecked")
-    private Flux<MapRecord<String, Object, Object>> streamMessages(String groupName, String consumerId) {
-      return template.opsForStream()
-        .read(Consumer.from(groupName, consumerId),
-          StreamReadOptions.empty()
-            .count(100)
-            .block(Duration.ofSeconds(30)),
-          StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed()))
+    /**
+     * Читает стрим пачками и записывает каждую пачку в базу одним запросом.
+     * Следующая пачка читается только после записи предыдущей, а ее размер
+     * подстраивается под время записи в PostgreSQL.
+     */
+    private Flux<Long> streamBatches(String groupName, String consumerId) {
+      return Mono.defer(() -> poll(groupName, consumerId))
         .repeat()
         .retryWhen(Retry.backoff(3, Duration.ofSeconds(1))
           .maxAttempts(5))
@@ -99,6 +268,188 @@ public interface NamedCountNotification {
           log.error("Ошибка чтения стрима: {}", err.getMessage()));
     }
 
+    /**
+     * Обновляет метрики отставания записи в базу: непрочитанные и неподтвержденные сообщения группы
+     * и возраст самого старого из них. Неподтвержденные сообщения старше непрочитанных, поэтому
+     * следующее непрочитанное сообщение запрашивается только при пустом списке неподтвержденных.
+     */
+    private Mono<Void> backlog() {
+      return template.opsForStream().groups(STREAM_KEY)
+        .filter(group -> STREAM_GROUP_KEY.equals(group.groupName()))
+        .next()
+        .flatMap(group -> {
+          long unread = lag(group);
+          lag.set(unread);
+          pending.set(group.pendingCount());
+          if (group.pendingCount() > 0) {
+            return template.opsForStream().pending(STREAM_KEY, STREAM_GROUP_KEY)
+              .map(PendingMessagesSummary::minRecordId);
+          }
+          if (unread == 0) {
+            return Mono.empty();
+          }
+          return template.opsForStream()
+            .range(STREAM_KEY, Range.of(Range.Bound.exclusive(group.lastDeliveredId()), Range.Bound.unbounded()),
+              Limit.limit().count(1))
+            .next()
+            .map(Record::getId);
+        })
+        .map(id -> age(id, System.currentTimeMillis()))
+        .defaultIfEmpty(0L)
+        .doOnNext(oldestAge::set)
+        .then();
+    }
+
+    /**
+     * Читает и записывает в базу одну пачку сообщений.
+     * Пока у потребителя есть неподтвержденные сообщения, читаются они (XREADGROUP с идентификатором 0):
+     * это пачки, запись которых не удалась, и пачки, прочитанные до перезапуска. Новые сообщения
+     * (XREADGROUP с идентификатором "&gt;") читаются, когда неподтвержденных не осталось.
+     *
+     * @return количество записанных строк
+     */
+    Mono<Long> poll(String groupName, String consumerId) {
+      boolean unacknowledged = draining;
+      return template.opsForStream()
+        .read(Consumer.from(groupName, consumerId),
+          StreamReadOptions.empty()
+            .count(batchSize.get())
+            .block(Duration.ofSeconds(30)),
+          StreamOffset.create(STREAM_KEY, unacknowledged ? ReadOffset.from("0") : ReadOffset.lastConsumed()))
+        .collectList()
+        .flatMap(messages -> {
+          if (unacknowledged && messages.isEmpty()) {
+            draining = false;
+          }
+          return persist(messages);
+        });
+    }
+
+    /**
+     * Записывает пачку сообщений стрима в базу и подтверждает их обработку в группе.
+     * Повторы счетчика пользователя в пачке схлопываются до последнего значения при записи в базу.
+     * При ошибке записи сообщения остаются неподтвержденными и после паузы читаются повторно, а размер
+     * пачки уменьшается. Если пачка не записалась {@code maxAttempts} раз подряд, она записывается
+     * построчно, см. {@link #persistEach}.
+     *
+     * @param messages сообщения, прочитанные одним XREADGROUP
+     * @return количество записанных строк
+     */
+    private Mono<Long> persist(List<MapRecord<String, Object, Object>> messages) {
+      if (messages.isEmpty()) {
+        return Mono.just(0L);
+      }
+      List<ChangeValue> values = new ArrayList<>(messages.size());
+      for (MapRecord<String, Object, Object> message : messages) {
+        Optional<ChangeValue> read = strategy.read(message);
+        if (read.isPresent()) {
+          var changeValue = read.get();
+          if (log.isDebugEnabled()) {
+            log.debug("Change value for {}: {}", STREAM_KEY, changeValue);
+          }
+          values.add(changeValue);
+        } else {
+          parseFailures.increment();
+          log.error("Message can't parsed: {}", message);
+        }
+      }
+      batchRecords.record(messages.size());
+      received.increment(values.size());
+      List<CounterRepository.Change> changes = values.stream()
+        .map(changeValue -> new CounterRepository.Change(changeValue.counterId, changeValue.userId, changeValue.value))
+        .toList();
+      RecordId[] ids = messages.stream().map(Record::getId).toArray(RecordId[]::new);
+      long started = System.nanoTime();
+      return repository.upsertAll(changes)
+        .doOnSuccess(rows -> {
+          compacted.increment(Math.max(0, changes.size() - rows));
+          Duration latency = Duration.ofNanos(System.nanoTime() - started);
+          persistTime.record(latency);
+          batchSize.record(latency, messages.size());
+        })
+        .flatMap(rows -> acknowledge(ids).thenReturn(rows))
+        .onErrorResume(throwable -> {
+          log.error("Error while persisting {} counter values: {}", changes.size(), throwable.getMessage());
+          persistTime.record(Duration.ofNanos(System.nanoTime() - started));
+          batchSize.failed();
+          draining = true;
+          if (attempts.incrementAndGet() < maxAttempts) {
+            return Mono.delay(retryDelay).thenReturn(0L);
+          }
+          return persistEach(changes, ids);
+        });
+    }
+
+    /**
+     * Записывает значения пачки по одному, чтобы одно значение, которое база не принимает,
+     * не останавливало запись остальных. Отвергнутые базой значения ({@link DataIntegrityViolationException})
+     * пропускаются с записью в лог и метрику, после чего подтверждается вся пачка. При любой другой ошибке
+     * (например, база недоступна) пачка остается неподтвержденной и после паузы читается повторно.
+     *
+     * @param changes значения пачки в порядке сообщений
+     * @param ids     идентификаторы сообщений пачки
+     * @return количество записанных строк
+     */
+    private Mono<Long> persistEach(List<CounterRepository.Change> changes, RecordId[] ids) {
+      log.warn("Persisting {} counter values one by one after {} failed attempts", changes.size(), attempts.get());
+      return Flux.fromIterable(changes)
+        .concatMap(change -> repository.upsertAll(List.of(change))
+          .onErrorResume(DataIntegrityViolationException.class, throwable -> {
+            rejected.increment();
+            log.error("Counter value {} is rejected and dropped: {}", change, throwable.getMessage());
+            return Mono.just(0L);
+          }))
+        .reduce(0L, Long::sum)
+        .flatMap(rows -> acknowledge(ids).thenReturn(rows))
+        .onErrorResume(throwable -> {
+          log.error("Error while persisting {} counter values one by one: {}", changes.size(), throwable.getMessage());
+          return Mono.delay(retryDelay).thenReturn(0L);
+        });
+    }
+
+    /**
+     * Подтверждает обработку сообщений в группе и сбрасывает счетчик неудачных попыток записи.
+     */
+    private Mono<Long> acknowledge(RecordId[] ids) {
+      return template.opsForStream().acknowledge(STREAM_KEY, STREAM_GROUP_KEY, ids)
+        .doOnSuccess(count -> attempts.set(0));
+    }
+
+    /**
+     * Размер пачки чтения стрима, подстраиваемый под время записи в базу.
+     * Пока запись укладывается в целевое время и пачки заполняются полностью, размер растет
+     * на минимальный шаг; при превышении целевого времени и при ошибке записи размер уменьшается вдвое.
+     */
+    static final class BatchSize {
+      private final int min;
+      private final int max;
+      private final long targetNanos;
+      private volatile int current;
+
+      BatchSize(int min, int max, Duration target) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.targetNanos = target.toNanos();
+        this.current = Math.min(this.max, Math.max(this.min, DEFAULT_BATCH_SIZE));
+      }
+
+      int get() {
+        return current;
+      }
+
+      void failed() {
+        current = Math.max(min, current / 2);
+      }
+
+      void record(Duration latency, int records) {
+        if (latency.toNanos() > targetNanos) {
+          current = Math.max(min, current / 2);
+        } else if (records >= current) {
+          current = Math.min(max, current + min);
+        }
+      }
+    }
+
     record ChangeValue(long userId, long counterId, long value) {
       @SuppressWarnings("unchecked")
       enum ChangeStrategy implements Strategy {
@@ -120,7 +471,7 @@ public interface NamedCountNotification {
             Number counterId = (Number) changes.get("counter-id");
             Number value = (Number) changes.get("value");
             if (counterId != null && userId != null && value != null) {
-              return Optional.of(new ChangeValue(counterId.longValue(), userId.longValue(), value.longValue()));
+              return Optional.of(new ChangeValue(userId.longValue(), counterId.longValue(), value.longValue()));
             } else {
               return Optional.empty();
             }
@@ -154,7 +505,7 @@ public interface NamedCountNotification {
               long userId = Long.parseLong(changes.get("user-id"));
               long counterId = Long.parseLong(changes.get("counter-id"));
               long value = Long.parseLong(changes.get("value"));
-              return Optional.of(new ChangeValue(counterId, userId, value));
+              return Optional.of(new ChangeValue(userId, counterId, value));
             } catch (Exception ex) {
               log.error("Can't fetch values on {}. Error: {}", changes, ex.getMessage());
               return Optional.empty();
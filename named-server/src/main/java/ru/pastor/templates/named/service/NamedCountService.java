@@ -1,9 +1,27 @@
 package ru.pastor.templates.named.service;
 
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import ru.pastor.templates.named.cache.NamedCache;
+import reactor.core.publisher.SignalType;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
+import ru.pastor.templates.named.mapper.CounterMapper;
+import ru.pastor.templates.named.model.CatalogueModel;
+import ru.pastor.templates.named.model.CounterModel;
+import ru.pastor.templates.named.repository.CounterRepository;
+import ru.pastor.templates.named.repository.entity.CounterEntity;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Сервис для работы с именованными счетчиками.
@@ -20,6 +38,15 @@ public interface NamedCountService {
    */
   Mono<Long> get(String name, long userId);
 
+  /**
+   * Получает текущее значение счетчика по идентификатору из каталога, не разрешая имя.
+   *
+   * @param counterId идентификатор счетчика в каталоге
+   * @param userId    идентификатор пользователя
+   * @return текущее значение счетчика или пустой Mono, если счетчика нет в каталоге
+   */
+  Mono<Long> get(long counterId, long userId);
+
   /**
    * Увеличивает значение счетчика на 1 для указанного пользователя.
    *
@@ -39,46 +66,232 @@ public interface NamedCountService {
    */
   Mono<Long> increment(String name, long userId, long delta);
 
+  /**
+   * Увеличивает значение счетчика по идентификатору из каталога, не разрешая имя.
+   *
+   * @param counterId идентификатор счетчика в каталоге
+   * @param userId    идентификатор пользователя
+   * @param delta     величина, на которую нужно увеличить счетчик
+   * @return новое значение счетчика или пустой Mono, если счетчика нет в каталоге
+   */
+  Mono<Long> increment(long counterId, long userId, long delta);
+
+  /**
+   * Увеличивает значения нескольких счетчиков за один вызов.
+   * Каждое имя счетчика разрешается через каталог один раз на весь пакет,
+   * запросы с идентификатором счетчика обходятся без разрешения имени.
+   * Ошибка отдельного увеличения возвращается в его результате и не прерывает остальные:
+   * клиент, повторяющий неудачные запросы, не увеличит выполненные счетчики повторно.
+   * Поток завершается ошибкой только при ошибке разрешения имен, до выполнения увеличений.
+   *
+   * @param increments запросы на увеличение
+   * @return результаты увеличений в порядке запросов
+   */
+  Flux<Incremented> incrementAll(List<Increment> increments);
+
   Mono<Long> reset(String name, long userId);
 
+  /**
+   * Сбрасывает значение счетчика по идентификатору из каталога, не разрешая имя.
+   *
+   * @param counterId идентификатор счетчика в каталоге
+   * @param userId    идентификатор пользователя
+   * @return значение после сброса или пустой Mono, если счетчика нет в каталоге
+   */
+  Mono<Long> reset(long counterId, long userId);
+
+  /**
+   * Получает счетчики пользователя в порядке идентификаторов счетчиков.
+   * Счетчики читаются из базы данных постранично, поэтому объем памяти не зависит от их количества,
+   * кроме группы счетчиков пользователя в кэше, которая читается целиком.
+   *
+   * @param userId         идентификатор пользователя
+   * @param prefix         префикс имени счетчика; пустая строка означает все счетчики
+   * @param afterCounterId идентификатор счетчика, после которого начинается выдача
+   * @param limit          максимальное количество счетчиков; 0 означает без ограничения
+   * @return поток счетчиков пользователя
+   */
+  Flux<CounterModel> list(long userId, String prefix, long afterCounterId, int limit);
+
+  /**
+   * Запрос на увеличение значения счетчика в составе пакета.
+   * Счетчик задается либо именем, либо идентификатором из каталога.
+   *
+   * @param name      имя счетчика или null, если задан идентификатор
+   * @param counterId идентификатор счетчика или {@link CatalogueIndex#MISSING}, если задано имя
+   * @param userId    идентификатор пользователя
+   * @param delta     величина, на которую нужно увеличить счетчик
+   */
+  record Increment(String name, long counterId, long userId, long delta) {
+    public Increment(String name, long userId, long delta) {
+      this(name, CatalogueIndex.MISSING, userId, delta);
+    }
+
+    public Increment(long counterId, long userId, long delta) {
+      this(null, counterId, userId, delta);
+    }
+  }
+
+  /**
+   * Результат увеличения счетчика в составе пакета.
+   *
+   * @param value новое значение или null, если счетчик не найден или увеличение не выполнено
+   * @param error ошибка увеличения или null
+   */
+  record Incremented(Long value, Throwable error) {
+    /**
+     * Результат для счетчика, отсутствующего в каталоге.
+     */
+    public static final Incremented MISSING = new Incremented(null, null);
+
+    public static Incremented found(long value) {
+      return new Incremented(value, null);
+    }
+
+    public static Incremented failed(Throwable error) {
+      return new Incremented(null, error);
+    }
+  }
+
   /**
    * Стандартная реализация сервиса именованных счетчиков.
    * Использует кэши для хранения значений счетчиков и каталога счетчиков.
+   * <p>
+   * Если задан реестр метрик, время этапов get, increment и reset измеряется отдельно:
+   * разрешение имени через источник каталога (catalogue), операция с кэшем значений и Redis (values)
+   * и публикация в стрим изменений (publish). Метрика Counter_stage_time имеет теги operation, stage
+   * и outcome (success, error или cancelled); таймеры регистрируются при создании сервиса. Имя сначала ищется в индексе каталога:
+   * поиск выполняется в памяти без выделения Mono и не измеряется, источник запрашивается только при промахе.
    */
   @Slf4j
-  @RequiredArgsConstructor
   final class Standard implements NamedCountService {
     /**
-     * Кэш для хранения значений счетчиков.
+     * Размер страницы при чтении счетчиков пользователя из базы данных.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Имя метрики времени этапов обработки запроса.
+     */
+    private static final String STAGE_METRIC = "Counter_stage_time";
+
+    /**
+     * Значения счетчиков пользователей.
      */
-    private final NamedCache<String, Integer> values;
+    private final Counters values;
 
     /**
-     * Кэш для хранения каталога счетчиков.
+     * Индекс каталога счетчиков для получения идентификатора счетчика по имени.
      */
-    private final NamedCache<String, Integer> catalogue;
+    private final CatalogueIndex catalogue;
     private final NamedCountNotification notification;
 
     /**
-     * Формирует ключ для доступа к значению счетчика.
+     * Репозиторий значений счетчиков, используемый для постраничного чтения.
+     */
+    private final CounterRepository counters;
+
+    /**
+     * Таймеры этапов или null, если этапы не измеряются.
+     */
+    private final Map<Stage, StageTimer> stages;
+
+    /**
+     * Создает сервис без измерения этапов.
+     *
+     * @param values       значения счетчиков пользователей
+     * @param catalogue    индекс каталога счетчиков
+     * @param notification стрим изменений счетчиков
+     * @param counters     репозиторий значений счетчиков
+     */
+    public Standard(Counters values, CatalogueIndex catalogue, NamedCountNotification notification, CounterRepository counters) {
+      this(values, catalogue, notification, counters, null);
+    }
+
+    /**
+     * Создает сервис, измеряющий время этапов обработки запроса.
+     *
+     * @param values       значения счетчиков пользователей
+     * @param catalogue    индекс каталога счетчиков
+     * @param notification стрим изменений счетчиков
+     * @param counters     репозиторий значений счетчиков
+     * @param registry     реестр метрик этапов или null, если этапы не измеряются
+     */
+    public Standard(Counters values,
+                    CatalogueIndex catalogue,
+                    NamedCountNotification notification,
+                    CounterRepository counters,
+                    MeterRegistry registry) {
+      this.values = values;
+      this.catalogue = catalogue;
+      this.notification = notification;
+      this.counters = counters;
+      if (registry == null) {
+        this.stages = null;
+      } else {
+        this.stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+          stages.put(stage, new StageTimer(registry, stage));
+        }
+      }
+    }
+
+    /**
+     * Проверяет идентификатор счетчика по индексу каталога, а при промахе - через источник каталога,
+     * так же как разрешаются имена: индекс может еще не содержать счетчик, созданный на другом узле.
      *
-     * @param name   имя счетчика
-     * @param userId идентификатор пользователя
-     * @return ключ в формате "named:userId:counterId" в виде Mono
+     * @param counterId идентификатор счетчика
+     * @param stage     этап, к которому относится обращение к источнику каталога
+     * @return идентификатор счетчика или пустой Mono, если счетчика нет в каталоге
+     */
+    private Mono<Integer> known(long counterId, Stage stage) {
+      if (counterId <= 0 || counterId > Integer.MAX_VALUE) {
+        return Mono.empty();
+      }
+      int id = (int) counterId;
+      if (catalogue.name(id) != null) {
+        return Mono.just(id);
+      }
+      return timed(catalogue.resolve(id), stage)
+        .map(name -> id);
+    }
+
+    /**
+     * Измеряет время этапа, если задан реестр метрик.
+     *
+     * @param mono  выполнение этапа
+     * @param stage измеряемый этап
+     * @return этап с измерением времени или исходный этап
+     */
+    private <T> Mono<T> timed(Mono<T> mono, Stage stage) {
+      return stages == null ? mono : stages.get(stage).time(mono);
+    }
+
+    /**
+     * Приводит величину увеличения к допустимому диапазону: неположительные значения заменяются на 1.
      */
-    private Mono<String> key(String name, long userId) {
-      return catalogue.get(name).map(v -> String.format("named:%d:%d", userId, v));
+    private static long delta(long delta) {
+      return delta <= 0 ? 1 : delta;
     }
 
     /**
      * {@inheritDoc}
-     * Получает значение счетчика из кэша по сформированному ключу.
+     * Получает значение счетчика по идентификатору, разрешенному через каталог.
      */
     @Override
     public Mono<Long> get(String name, long userId) {
-      return key(name, userId)
-        .flatMap(values::get)
-        .map(Long::valueOf);
+      int id = catalogue.id(name);
+      if (id != CatalogueIndex.MISSING) {
+        return timed(values.get(userId, id), Stage.GET_VALUES);
+      }
+      return timed(catalogue.resolve(name), Stage.GET_CATALOGUE)
+        .flatMap(counterId -> timed(values.get(userId, counterId), Stage.GET_VALUES));
+    }
+
+    @Override
+    public Mono<Long> get(long counterId, long userId) {
+      return known(counterId, Stage.GET_CATALOGUE)
+        .flatMap(id -> timed(values.get(userId, id), Stage.GET_VALUES));
     }
 
     /**
@@ -94,28 +307,244 @@ public interface NamedCountService {
      * {@inheritDoc}
      * Увеличивает значение счетчика на указанную величину.
      * Если счетчик не существует, создает его с начальным значением 0 и затем увеличивает.
+     * Имя счетчика разрешается по индексу каталога, а при промахе - через источник каталога.
      */
     @Override
     public Mono<Long> increment(String name, long userId, long delta) {
-      if (delta < 0 || delta > Integer.MAX_VALUE || delta == 0) {
-        delta = 1;
+      int id = catalogue.id(name);
+      if (id != CatalogueIndex.MISSING) {
+        return increment(id, userId, delta);
+      }
+      return timed(catalogue.resolve(name), Stage.INCREMENT_CATALOGUE)
+        .flatMap(counterId -> increment(counterId, userId, delta));
+    }
+
+    @Override
+    public Mono<Long> increment(long counterId, long userId, long delta) {
+      return known(counterId, Stage.INCREMENT_CATALOGUE)
+        .flatMap(id -> increment(id, userId, delta));
+    }
+
+    private Mono<Long> increment(int counterId, long userId, long delta) {
+      return timed(values.increment(userId, counterId, delta(delta)), Stage.INCREMENT_VALUES)
+        .flatMap(newValue -> publish(userId, counterId, newValue));
+    }
+
+    /**
+     * Публикует новое значение в стрим изменений, если кэш значений не сделал этого сам при увеличении.
+     */
+    private Mono<Long> publish(long userId, int counterId, Long newValue) {
+      if (values.publishes()) {
+        return Mono.just(newValue);
+      }
+      return timed(notification.update(userId, counterId, newValue).thenReturn(newValue), Stage.INCREMENT_PUBLISH);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Сначала разрешает все уникальные имена пакета, затем выполняет увеличения параллельно,
+     * сохраняя порядок ответов. Одновременные команды уходят в одно соединение Lettuce и
+     * отправляются в Redis конвейером, без ожидания ответа на каждую.
+     */
+    @Override
+    public Flux<Incremented> incrementAll(List<Increment> increments) {
+      Map<String, Integer> ids = new HashMap<>();
+      Set<String> missing = new HashSet<>();
+      for (Increment increment : increments) {
+        if (increment.name() != null && !ids.containsKey(increment.name())) {
+          int id = catalogue.id(increment.name());
+          if (id == CatalogueIndex.MISSING) {
+            missing.add(increment.name());
+          } else {
+            ids.put(increment.name(), id);
+          }
+        }
       }
-      var finalDelta = delta;
-      return key(name, userId)
-        .flatMap(k -> values.increment(k, (int) finalDelta))
-        .flatMap(newValue -> catalogue.get(name)
-          .flatMap(ci -> notification.update(userId, ci, newValue.longValue())
-            .thenReturn(newValue.longValue())));
+      return Flux.fromIterable(missing)
+        .flatMap(name -> timed(catalogue.resolve(name), Stage.INCREMENT_CATALOGUE).map(id -> Map.entry(name, id)))
+        .doOnNext(entry -> ids.put(entry.getKey(), entry.getValue()))
+        .then(Mono.just(ids))
+        .flatMapMany(resolved -> Flux.fromIterable(increments)
+          .flatMapSequential(increment -> {
+            Mono<Integer> counterId = increment.name() == null ?
+              known(increment.counterId(), Stage.INCREMENT_CATALOGUE) :
+              Mono.justOrEmpty(resolved.get(increment.name()));
+            return counterId
+              .flatMap(id -> increment(id, increment.userId(), increment.delta()))
+              .map(value -> Incremented.found(value))
+              .defaultIfEmpty(Incremented.MISSING)
+              .onErrorResume(e -> Mono.just(Incremented.failed(e)));
+          }));
     }
 
     //FIXME: Здесь надо выставлять не 0, а значение по умолчанию из counter_catalogue
     @Override
     public Mono<Long> reset(String name, long userId) {
-      return key(name, userId)
-        .flatMap(k -> values.reset(k, 0))
-        .flatMap(newValue -> catalogue.get(name)
-          .flatMap(ci -> notification.reset(userId, ci, 0)
-            .thenReturn(0L)));
+      int id = catalogue.id(name);
+      if (id != CatalogueIndex.MISSING) {
+        return reset(id, userId);
+      }
+      return timed(catalogue.resolve(name), Stage.RESET_CATALOGUE)
+        .flatMap(counterId -> reset(counterId, userId));
+    }
+
+    @Override
+    public Mono<Long> reset(long counterId, long userId) {
+      return known(counterId, Stage.RESET_CATALOGUE)
+        .flatMap(id -> reset(id, userId));
+    }
+
+    private Mono<Long> reset(int counterId, long userId) {
+      return timed(values.reset(userId, counterId, 0), Stage.RESET_VALUES)
+        .flatMap(newValue -> timed(notification.reset(userId, counterId, 0).thenReturn(0L), Stage.RESET_PUBLISH));
+    }
+
+    /**
+     * {@inheritDoc}
+     * Следующая страница запрашивается только после того, как предыдущая отдана подписчику.
+     * Значения из базы данных могут отставать от потока обновлений, поэтому для каждого счетчика
+     * берется значение из кэша, если оно там есть. Если кэш хранит счетчики пользователя одной группой,
+     * группа читается один раз на весь вызов и в выдачу добавляются счетчики, которые есть только в кэше
+     * и еще не записаны в базу. Иначе значения читаются по одному на счетчик.
+     */
+    @Override
+    public Flux<CounterModel> list(long userId, String prefix, long afterCounterId, int limit) {
+      Flux<CounterModel> result = values.group(userId)
+        .flatMapMany(cached -> merged(userId, prefix, afterCounterId, cached))
+        .switchIfEmpty(Flux.defer(() -> pages(userId, prefix, afterCounterId)
+          .concatMap(page -> Flux.fromIterable(page)
+            .flatMapSequential(this::fresh), 1)));
+      return limit > 0 ? result.take(limit) : result;
+    }
+
+    private Flux<List<CounterEntity>> pages(long userId, String prefix, long afterCounterId) {
+      return page(userId, prefix, afterCounterId)
+        .expand(page -> page.size() < PAGE_SIZE ? Mono.empty() :
+          page(userId, prefix, page.get(page.size() - 1).catalogue().id()));
+    }
+
+    /**
+     * Объединяет страницы из базы данных с группой счетчиков из кэша в порядке идентификаторов счетчиков.
+     * Счетчик, которого нет в базе, выдается вместе со страницей, в диапазон идентификаторов которой он попадает.
+     */
+    private Flux<CounterModel> merged(long userId, String prefix, long afterCounterId, Map<Long, Long> cached) {
+      NavigableMap<Long, Long> pending = new TreeMap<>();
+      cached.forEach((counterId, value) -> {
+        String name = counterId > afterCounterId && counterId <= Integer.MAX_VALUE ? catalogue.name(counterId.intValue()) : null;
+        if (name != null && name.startsWith(prefix)) {
+          pending.put(counterId, value);
+        }
+      });
+      return pages(userId, prefix, afterCounterId)
+        .concatMapIterable(page -> {
+          long last = page.size() < PAGE_SIZE ? Long.MAX_VALUE : page.get(page.size() - 1).catalogue().id();
+          NavigableMap<Long, CounterModel> models = new TreeMap<>();
+          page.forEach(entity -> models.put(entity.catalogue().id().longValue(),
+            fresh(entity, cached.get(entity.catalogue().id().longValue()))));
+          NavigableMap<Long, Long> due = pending.headMap(last, true);
+          due.forEach((counterId, value) -> models.putIfAbsent(counterId, cachedOnly(userId, counterId, value)));
+          due.clear();
+          return models.values();
+        });
+    }
+
+    /**
+     * Создает модель счетчика, который есть только в кэше.
+     */
+    private CounterModel cachedOnly(long userId, long counterId, long value) {
+      return CounterModel.builder()
+        .information(CatalogueModel.Information.builder()
+          .id(counterId)
+          .name(catalogue.name((int) counterId))
+          .build())
+        .userId(userId)
+        .value(value)
+        .build();
+    }
+
+    private Mono<List<CounterEntity>> page(long userId, String prefix, long afterCounterId) {
+      return counters.list(userId, prefix, afterCounterId, PAGE_SIZE).collectList();
+    }
+
+    /**
+     * Заменяет значение счетчика из базы данных значением из кэша, если оно там есть.
+     */
+    private Mono<CounterModel> fresh(CounterEntity entity) {
+      return values.get(entity.userId(), entity.catalogue().id())
+        .map(value -> fresh(entity, value))
+        .defaultIfEmpty(CounterMapper.INSTANCE.toModel(entity));
+    }
+
+    private static CounterModel fresh(CounterEntity entity, Long cached) {
+      CounterModel model = CounterMapper.INSTANCE.toModel(entity);
+      return cached == null ? model : model.toBuilder().value(cached).build();
+    }
+
+    /**
+     * Измеряемые этапы операций сервиса.
+     */
+    private enum Stage {
+      GET_CATALOGUE("get", "catalogue"),
+      GET_VALUES("get", "values"),
+      INCREMENT_CATALOGUE("increment", "catalogue"),
+      INCREMENT_VALUES("increment", "values"),
+      INCREMENT_PUBLISH("increment", "publish"),
+      RESET_CATALOGUE("reset", "catalogue"),
+      RESET_VALUES("reset", "values"),
+      RESET_PUBLISH("reset", "publish");
+
+      private final String operation;
+      private final String name;
+
+      Stage(String operation, String name) {
+        this.operation = operation;
+        this.name = name;
+      }
+    }
+
+    /**
+     * Таймеры одного этапа, зарегистрированные один раз при создании сервиса.
+     * Запрос только запускает и останавливает Timer.Sample, не разрешая метрики в реестре.
+     */
+    private static final class StageTimer {
+      private final MeterRegistry registry;
+      private final Timer success;
+      private final Timer failure;
+      private final Timer cancelled;
+
+      private StageTimer(MeterRegistry registry, Stage stage) {
+        this.registry = registry;
+        this.success = timer(registry, stage, "success");
+        this.failure = timer(registry, stage, "error");
+        this.cancelled = timer(registry, stage, "cancelled");
+      }
+
+      private static Timer timer(MeterRegistry registry, Stage stage, String outcome) {
+        return Timer.builder(STAGE_METRIC)
+          .tag("operation", stage.operation)
+          .tag("stage", stage.name)
+          .tag("outcome", outcome)
+          .register(registry);
+      }
+
+      /**
+       * Выбирает таймер по завершению этапа. Отмененный этап, например при отмене запроса клиентом,
+       * не считается ни успешным, ни ошибочным.
+       */
+      private Timer outcome(SignalType signal) {
+        return switch (signal) {
+          case ON_ERROR -> failure;
+          case CANCEL -> cancelled;
+          default -> success;
+        };
+      }
+
+      <T> Mono<T> time(Mono<T> mono) {
+        return Mono.defer(() -> {
+          Timer.Sample sample = Timer.start(registry);
+          return mono.doFinally(signal -> sample.stop(outcome(signal)));
+        });
+      }
     }
   }
 }
@@ -1,17 +1,24 @@
 package ru.pastor.templates.named.service;
 
-import lombok.RequiredArgsConstructor;
+import com.salesforce.reactorgrpc.stub.ReactorCallOptions;
+import io.grpc.CallOptions;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.pastor.templates.named.server.grpc.CountFilter;
+import ru.pastor.templates.named.server.grpc.CountIncrementBatch;
 import ru.pastor.templates.named.server.grpc.CountIncrementRequest;
 import ru.pastor.templates.named.server.grpc.CountValue;
+import ru.pastor.templates.named.server.grpc.CountValueBatch;
 import ru.pastor.templates.named.server.grpc.Error;
 import ru.pastor.templates.named.server.grpc.ReactorCountServiceGrpc;
 import ru.pastor.templates.named.server.grpc.Status;
 
+import java.util.List;
+
 /**
  * gRPC сервис для работы со счетчиками.
  * Предоставляет API для получения и обновления значений счетчиков через gRPC протокол.
@@ -19,9 +26,13 @@ import ru.pastor.templates.named.server.grpc.Status;
  * Делегирует бизнес-логику сервису NamedCountService.
  */
 @Slf4j
-@RequiredArgsConstructor
 @Service("NamedServerService.Count.Grpc")
 public class NamedServerCountServiceGrpc extends ReactorCountServiceGrpc.CountServiceImplBase {
+  /**
+   * Количество одновременно обрабатываемых запросов потока записи по умолчанию.
+   */
+  private static final int DEFAULT_IN_FLIGHT = 64;
+
   /**
    * Сервис для работы с именованными счетчиками.
    * Используется для выполнения операций с счетчиками.
@@ -29,23 +40,56 @@ public class NamedServerCountServiceGrpc extends ReactorCountServiceGrpc.CountSe
   private final NamedCountService namedCountService;
 
   /**
-   * Получает значение счетчика по имени и идентификатору пользователя.
+   * Максимальное количество запросов потока записи, находящихся в обработке.
+   * Ограничивает и буфер входящих сообщений, поэтому при медленной обработке
+   * gRPC перестает запрашивать новые сообщения и клиент упирается в управление потоком HTTP/2.
+   */
+  private final int inFlight;
+
+  /**
+   * Не передавать имя счетчика в ответах. Клиенты, которые адресуют счетчики идентификаторами
+   * или сопоставляют ответы с запросами по порядку, не тратят трафик и разбор строки на имя.
+   */
+  private final boolean omitName;
+
+  public NamedServerCountServiceGrpc(NamedCountService namedCountService) {
+    this(namedCountService, DEFAULT_IN_FLIGHT);
+  }
+
+  public NamedServerCountServiceGrpc(NamedCountService namedCountService, int inFlight) {
+    this(namedCountService, inFlight, false);
+  }
+
+  @Autowired
+  public NamedServerCountServiceGrpc(NamedCountService namedCountService,
+                                     @Value("${app.grpc.increment-stream.in-flight:64}") int inFlight,
+                                     @Value("${app.grpc.omit-name:false}") boolean omitName) {
+    this.namedCountService = namedCountService;
+    this.inFlight = Math.max(1, inFlight);
+    this.omitName = omitName;
+  }
+
+  /**
+   * Получает значение счетчика по имени или идентификатору и идентификатору пользователя.
    *
-   * @param request запрос с параметрами фильтрации (имя счетчика и идентификатор пользователя)
+   * @param request запрос с параметрами фильтрации (счетчик и идентификатор пользователя)
    * @return ответ, содержащий значение счетчика и статус операции
    */
   @Override
   public Mono<CountValue> get(CountFilter request) {
-    return namedCountService.get(request.getName(), request.getUserId())
-      .map(v -> CountValue.newBuilder()
-        .setName(request.getName())
+    boolean byId = request.getFilterCase() == CountFilter.FilterCase.ID;
+    Mono<Long> value = byId ?
+      namedCountService.get(request.getId(), request.getUserId()) :
+      namedCountService.get(request.getName(), request.getUserId());
+    return value
+      .map(v -> counter(byId, request.getId(), request.getName())
         .setValue(v)
         .setStatus(Status.SUCCESS)
         .build())
-      .switchIfEmpty(Mono.just(CountValue.newBuilder()
+      .switchIfEmpty(Mono.fromSupplier(() -> counter(byId, request.getId(), request.getName())
         .setStatus(Status.NOT_FOUND)
         .build()))
-      .onErrorResume(throwable -> Mono.just(CountValue.newBuilder()
+      .onErrorResume(throwable -> Mono.just(counter(byId, request.getId(), request.getName())
         .setStatus(Status.FAILURE)
         .setError(Error.newBuilder().setMessage(throwable.getMessage()).build())
         .build()));
@@ -53,53 +97,174 @@ public class NamedServerCountServiceGrpc extends ReactorCountServiceGrpc.CountSe
 
   @Override
   public Mono<CountValue> reset(CountFilter request) {
-    return namedCountService.reset(request.getName(), request.getUserId())
-      .map(v -> CountValue.newBuilder()
-        .setName(request.getName())
+    boolean byId = request.getFilterCase() == CountFilter.FilterCase.ID;
+    Mono<Long> value = byId ?
+      namedCountService.reset(request.getId(), request.getUserId()) :
+      namedCountService.reset(request.getName(), request.getUserId());
+    return value
+      .map(v -> counter(byId, request.getId(), request.getName())
         .setValue(v)
         .setStatus(Status.SUCCESS)
         .build())
-      .switchIfEmpty(Mono.just(CountValue.newBuilder()
+      .switchIfEmpty(Mono.fromSupplier(() -> counter(byId, request.getId(), request.getName())
         .setStatus(Status.NOT_FOUND)
         .build()))
-      .onErrorResume(throwable -> Mono.just(CountValue.newBuilder()
+      .onErrorResume(throwable -> Mono.just(counter(byId, request.getId(), request.getName())
         .setStatus(Status.FAILURE)
         .setError(Error.newBuilder().setMessage(throwable.getMessage()).build())
         .build()));
   }
 
   /**
-   * Получает список счетчиков по параметрам фильтрации.
-   * В текущей реализации делегирует вызов родительскому методу, который возвращает пустой поток.
+   * Получает счетчики пользователя потоком, упорядоченным по идентификатору счетчика.
+   * Имя из запроса используется как префикс, limit и after_id задают размер и начало страницы.
+   * Поля limit и after_id беззнаковые: limit больше Integer.MAX_VALUE ограничивается им,
+   * а after_id больше Long.MAX_VALUE не оставляет счетчиков для выдачи.
+   * Ответы отдаются по мере чтения из базы данных с учетом обратного давления клиента.
+   * Ошибка чтения завершает поток ответом со статусом FAILURE.
    *
    * @param request запрос с параметрами фильтрации
    * @return поток ответов, содержащих значения счетчиков и статусы операций
    */
   @Override
   public Flux<CountValue> list(CountFilter request) {
-    return Flux.empty();
+    int limit = (int) Math.min(Integer.toUnsignedLong(request.getLimit()), Integer.MAX_VALUE);
+    long afterId = request.getAfterId() < 0 ? Long.MAX_VALUE : request.getAfterId();
+    return namedCountService.list(request.getUserId(), request.getName(), afterId, limit)
+      .map(model -> counter(true, model.information().id(), model.information().name())
+        .setValue(model.value())
+        .setStatus(Status.SUCCESS)
+        .build())
+      .onErrorResume(throwable -> Mono.just(CountValue.newBuilder()
+        .setStatus(Status.FAILURE)
+        .setError(Error.newBuilder().setMessage(throwable.getMessage()).build())
+        .build()));
   }
 
   /**
    * Обновляет значение счетчика, увеличивая его на указанную величину.
    *
-   * @param request запрос с параметрами обновления (имя счетчика, идентификатор пользователя и величина изменения)
+   * @param request запрос с параметрами обновления (счетчик, идентификатор пользователя и величина изменения)
    * @return ответ, содержащий новое значение счетчика и статус операции
    */
   @Override
   public Mono<CountValue> increment(CountIncrementRequest request) {
-    return namedCountService.increment(request.getName(), request.getUserId(), request.getDelta())
-      .map(v -> CountValue.newBuilder()
-        .setName(request.getName())
+    boolean byId = request.getFilterCase() == CountIncrementRequest.FilterCase.ID;
+    Mono<Long> value = byId ?
+      namedCountService.increment(request.getId(), request.getUserId(), request.getDelta()) :
+      namedCountService.increment(request.getName(), request.getUserId(), request.getDelta());
+    return value
+      .map(v -> counter(byId, request.getId(), request.getName())
         .setValue(v)
         .setStatus(Status.SUCCESS)
         .build())
-      .switchIfEmpty(Mono.just(CountValue.newBuilder()
+      .switchIfEmpty(Mono.fromSupplier(() -> counter(byId, request.getId(), request.getName())
         .setStatus(Status.NOT_FOUND)
         .build()))
-      .onErrorResume(throwable -> Mono.just(CountValue.newBuilder()
+      .onErrorResume(throwable -> Mono.just(counter(byId, request.getId(), request.getName())
         .setStatus(Status.FAILURE)
         .setError(Error.newBuilder().setMessage(throwable.getMessage()).build())
         .build()));
   }
+
+  /**
+   * Увеличивает значения нескольких счетчиков за один вызов.
+   * Ответ содержит по одному значению на каждый запрос пакета в том же порядке.
+   * Ошибка отдельного увеличения возвращается статусом FAILURE только в его ответе.
+   * Статус FAILURE для всего пакета возвращается только при ошибке разрешения имен, когда
+   * ни одно увеличение еще не выполнено.
+   *
+   * @param request пакет запросов на увеличение
+   * @return пакет ответов с новыми значениями счетчиков и статусами операций
+   */
+  @Override
+  public Mono<CountValueBatch> batchIncrement(CountIncrementBatch request) {
+    List<CountIncrementRequest> requests = request.getRequestsList();
+    List<NamedCountService.Increment> increments = requests.stream()
+      .map(r -> r.getFilterCase() == CountIncrementRequest.FilterCase.ID ?
+        new NamedCountService.Increment(r.getId(), r.getUserId(), r.getDelta()) :
+        new NamedCountService.Increment(r.getName(), r.getUserId(), r.getDelta()))
+      .toList();
+    return namedCountService.incrementAll(increments)
+      .zipWithIterable(requests, (result, r) -> reply(counter(r), result))
+      .collectList()
+      .map(values -> CountValueBatch.newBuilder().addAllValues(values).build())
+      .onErrorResume(throwable -> {
+        var error = Error.newBuilder().setMessage(throwable.getMessage()).build();
+        return Mono.just(CountValueBatch.newBuilder()
+          .addAllValues(requests.stream()
+            .map(r -> counter(r)
+              .setStatus(Status.FAILURE)
+              .setError(error)
+              .build())
+            .toList())
+          .build());
+      });
+  }
+
+  /**
+   * Обрабатывает поток запросов на увеличение в рамках одного долгоживущего вызова.
+   * Одновременно обрабатывается не более {@code inFlight} запросов, ответы отдаются в порядке запросов.
+   * Ошибка отдельного запроса возвращается как ответ со статусом FAILURE и не завершает поток.
+   *
+   * @param requests поток запросов на увеличение
+   * @return поток ответов с новыми значениями счетчиков
+   */
+  @Override
+  public Flux<CountValue> incrementStream(Flux<CountIncrementRequest> requests) {
+    return requests.flatMapSequential(this::increment, inFlight, inFlight);
+  }
+
+  /**
+   * Дополняет ответ результатом увеличения из пакета.
+   */
+  private static CountValue reply(CountValue.Builder builder, NamedCountService.Incremented result) {
+    if (result.error() != null) {
+      return builder
+        .setStatus(Status.FAILURE)
+        .setError(Error.newBuilder().setMessage(String.valueOf(result.error().getMessage())).build())
+        .build();
+    }
+    if (result.value() == null) {
+      return builder.setStatus(Status.NOT_FOUND).build();
+    }
+    return builder
+      .setValue(result.value())
+      .setStatus(Status.SUCCESS)
+      .build();
+  }
+
+  private CountValue.Builder counter(CountIncrementRequest request) {
+    return counter(request.getFilterCase() == CountIncrementRequest.FilterCase.ID, request.getId(), request.getName());
+  }
+
+  /**
+   * Начинает ответ с описанием счетчика в том виде, в котором клиент его адресовал:
+   * идентификатор передается, если он известен, имя - если оно известно и не отключено настройкой.
+   * Ответы NOT_FOUND и FAILURE тоже содержат счетчик, чтобы клиент видел, какой запрос не выполнен.
+   */
+  private CountValue.Builder counter(boolean byId, long id, String name) {
+    CountValue.Builder builder = CountValue.newBuilder();
+    if (byId) {
+      builder.setId(id);
+    }
+    if (!omitName && name != null && !name.isEmpty()) {
+      builder.setName(name);
+    }
+    return builder;
+  }
+
+  /**
+   * Ограничивает предвыборку входящих сообщений для потока записи размером окна обработки,
+   * чтобы обратное давление доходило до клиента, а не копилось в буфере сервера.
+   */
+  @Override
+  protected CallOptions getCallOptions(int methodId) {
+    if (methodId == ReactorCountServiceGrpc.METHODID_INCREMENT_STREAM) {
+      return CallOptions.DEFAULT
+        .withOption(ReactorCallOptions.CALL_OPTIONS_PREFETCH, inFlight)
+        .withOption(ReactorCallOptions.CALL_OPTIONS_LOW_TIDE, Math.max(1, inFlight / 4));
+    }
+    return super.getCallOptions(methodId);
+  }
 }
@@ -0,0 +1,143 @@
+package ru.pastor.templates.named.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import reactor.test.scheduler.VirtualTimeScheduler;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CatalogueIndexTest {
+
+  private NamedCache<String, Integer> source;
+  private CatalogueIndex index;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    source = mock(NamedCache.class);
+    when(source.get(anyString())).thenReturn(Mono.empty());
+    when(source.get("loaded")).thenReturn(Mono.just(42));
+    when(source.delete(anyString())).thenReturn(Mono.empty());
+    index = new CatalogueIndex.Standard(source, entry -> Mono.fromRunnable(() -> {
+      entry.apply("first", 1);
+      entry.apply("second", 2);
+    }));
+  }
+
+  @Test
+  void testPreloadedLookups() {
+    assertEquals(1, index.id("first"));
+    assertEquals(2, index.id("second"));
+    assertEquals(CatalogueIndex.MISSING, index.id("unknown"));
+    assertEquals("second", index.name(2));
+    assertNull(index.name(3));
+  }
+
+  @Test
+  void testResolveLoadsMissingNameOnce() {
+    StepVerifier.create(index.resolve("loaded"))
+      .expectNext(42)
+      .verifyComplete();
+    StepVerifier.create(index.resolve("loaded"))
+      .expectNext(42)
+      .verifyComplete();
+
+    verify(source, times(1)).get("loaded");
+    assertEquals("loaded", index.name(42));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testResolveLoadsMissingIdOnce() {
+    NamedCache<Integer, String> names = mock(NamedCache.class);
+    when(names.get(anyInt())).thenReturn(Mono.empty());
+    when(names.get(42)).thenReturn(Mono.just("loaded"));
+    index = new CatalogueIndex.Standard(source, names, null);
+
+    StepVerifier.create(index.resolve(42))
+      .expectNext("loaded")
+      .verifyComplete();
+    StepVerifier.create(index.resolve(42))
+      .expectNext("loaded")
+      .verifyComplete();
+    StepVerifier.create(index.resolve(43))
+      .verifyComplete();
+
+    verify(names, times(1)).get(42);
+    assertEquals(42, index.id("loaded"));
+  }
+
+  @Test
+  void testFailedPreloadIsRetried() {
+    VirtualTimeScheduler scheduler = VirtualTimeScheduler.getOrSet();
+    try {
+      AtomicInteger attempts = new AtomicInteger();
+      index = new CatalogueIndex.Standard(source, entry -> Mono.defer(() -> {
+        if (attempts.incrementAndGet() == 1) {
+          return Mono.error(new IllegalStateException("Database is down"));
+        }
+        entry.apply("first", 1);
+        return Mono.empty();
+      }));
+      assertEquals(CatalogueIndex.MISSING, index.id("first"));
+
+      scheduler.advanceTimeBy(Duration.ofSeconds(2));
+
+      assertEquals(2, attempts.get());
+      assertEquals(1, index.id("first"));
+    } finally {
+      VirtualTimeScheduler.reset();
+    }
+  }
+
+  @Test
+  void testRenameReplacesPreviousName() {
+    index.put("renamed", 1);
+
+    assertEquals(1, index.id("renamed"));
+    assertEquals(CatalogueIndex.MISSING, index.id("first"));
+    assertEquals("renamed", index.name(1));
+  }
+
+  @Test
+  void testApplyRenameEvictsPreviousName() {
+    StepVerifier.create(index.apply("renamed", 2))
+      .verifyComplete();
+
+    assertEquals(2, index.id("renamed"));
+    assertEquals(CatalogueIndex.MISSING, index.id("second"));
+    verify(source).delete("second");
+  }
+
+  @Test
+  void testRemove() {
+    StepVerifier.create(index.remove("first"))
+      .verifyComplete();
+
+    assertEquals(CatalogueIndex.MISSING, index.id("first"));
+    verify(source).delete("first");
+  }
+
+  @Test
+  void testManyEntries() {
+    IntStream.range(100, 1100).forEach(id -> index.put("counter-" + id, id));
+
+    IntStream.range(100, 1100).forEach(id -> {
+      assertEquals(id, index.id("counter-" + id));
+      assertEquals("counter-" + id, index.name(id));
+    });
+  }
+}
@@ -0,0 +1,81 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CoalescingTest {
+
+  private NamedCache<String, Long> delegateCache;
+  private MeterRegistry meterRegistry;
+  private AtomicLong stored;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    meterRegistry = new SimpleMeterRegistry();
+    stored = new AtomicLong(100);
+    delegateCache = mock(NamedCache.class);
+    when(delegateCache.increment(anyString(), anyLong()))
+      .thenAnswer(i -> Mono.fromCallable(() -> stored.addAndGet(i.getArgument(1))));
+  }
+
+  @Test
+  void testIncrementsWithinWindowAreMerged() {
+    var cache = new Coalescing<>("test", Duration.ofMillis(50), meterRegistry, delegateCache);
+
+    // Three concurrent increments must reach the delegate as one command
+    StepVerifier.create(Flux.merge(
+          cache.increment("key1", 1L),
+          cache.increment("key1", 2L),
+          cache.increment("key1", 3L))
+        .collectSortedList())
+      .assertNext(values -> assertEquals(List.of(101L, 103L, 106L), values))
+      .verifyComplete();
+
+    verify(delegateCache, times(1)).increment("key1", 6L);
+    assertEquals(2.0, meterRegistry.get("Cache_test_coalesced_increment_count").counter().count());
+  }
+
+  @Test
+  void testDifferentKeysAreNotMerged() {
+    var cache = new Coalescing<>("test", Duration.ofMillis(10), meterRegistry, delegateCache);
+
+    StepVerifier.create(Flux.merge(cache.increment("key1", 1L), cache.increment("key2", 2L)).count())
+      .expectNext(2L)
+      .verifyComplete();
+
+    verify(delegateCache).increment("key1", 1L);
+    verify(delegateCache).increment("key2", 2L);
+  }
+
+  @Test
+  void testErrorIsPropagatedToEveryCaller() {
+    when(delegateCache.increment(anyString(), anyLong())).thenReturn(Mono.error(new RuntimeException("Test error")));
+    var cache = new Coalescing<>("test", Duration.ofMillis(10), meterRegistry, delegateCache);
+
+    StepVerifier.create(Flux.merge(
+        cache.increment("key1", 1L).onErrorReturn(-1L),
+        cache.increment("key1", 1L).onErrorReturn(-1L)))
+      .expectNext(-1L, -1L)
+      .verifyComplete();
+
+    verify(delegateCache, times(1)).increment("key1", 2L);
+  }
+}
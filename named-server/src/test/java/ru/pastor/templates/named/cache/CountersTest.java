@@ -0,0 +1,46 @@
+package ru.pastor.templates.named.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CountersTest {
+
+  private NamedCache<String, Long> values;
+  private Counters counters;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    values = mock(NamedCache.class);
+    counters = new Counters.Standard(values);
+  }
+
+  @Test
+  void testValuesAboveIntRangeAreKept() {
+    long large = Integer.MAX_VALUE + 10L;
+    when(values.increment("named:1:2", 5L)).thenReturn(Mono.just(large));
+
+    StepVerifier.create(counters.increment(1, 2, 5))
+      .expectNext(large)
+      .verifyComplete();
+    verify(values).increment("named:1:2", 5L);
+  }
+
+  @Test
+  void testGroupIsKeyedByCounterId() {
+    when(values.group("named:1")).thenReturn(Mono.just(Map.of("named:1:2", 15L, "named:1:3", 7L)));
+
+    StepVerifier.create(counters.group(1))
+      .assertNext(group -> assertEquals(Map.of(2L, 15L, 3L, 7L), group))
+      .verifyComplete();
+  }
+}
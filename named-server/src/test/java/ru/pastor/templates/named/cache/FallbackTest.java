@@ -0,0 +1,229 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FallbackTest {
+
+  private final AtomicLong now = new AtomicLong();
+  private NamedCache<String, Long> primary;
+  private NamedCache<String, Long> secondary;
+  private CircuitBreaker breaker;
+  private Fallback cache;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    primary = mock(NamedCache.class);
+    secondary = mock(NamedCache.class);
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+    when(primary.update(anyString(), anyLong())).thenAnswer(i -> Mono.just(i.getArgument(1)));
+    when(primary.putIfAbsent(anyString(), anyLong())).thenReturn(Mono.just(false));
+    when(secondary.increment(anyString(), anyLong())).thenReturn(Mono.just(7L));
+    when(secondary.get(anyString())).thenReturn(Mono.just(7L));
+    breaker = new CircuitBreaker(2, Duration.ofSeconds(5), now::get);
+    cache = new Fallback("test", primary, secondary, breaker, new SimpleMeterRegistry());
+  }
+
+  @Test
+  void testFailedIncrementFallsBack() {
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNext(7L)
+      .verifyComplete();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    verify(secondary).increment("named:1:2", 1L);
+  }
+
+  @Test
+  void testOpenCircuitSkipsPrimary() {
+    cache.increment("named:1:2", 1L).block();
+    cache.increment("named:1:2", 1L).block();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNext(7L)
+      .verifyComplete();
+    StepVerifier.create(cache.get("named:1:2"))
+      .expectNext(7L)
+      .verifyComplete();
+
+    verify(primary, times(2)).increment("named:1:2", 1L);
+    verify(primary, never()).get(anyString());
+  }
+
+  @Test
+  void testRecoveryReappliesIncrementsOnTopOfPrimary() {
+    cache.increment("named:1:3", 1L).block();
+    cache.increment("named:1:3", 2L).block();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(103L));
+
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNext(103L)
+      .verifyComplete();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    verify(primary).putIfAbsent("named:1:3", 7L);
+    verify(primary).increment("named:1:3", 3L);
+    verify(primary, never()).update(anyString(), anyLong());
+  }
+
+  @Test
+  void testRecoverySeedsLostKeys() {
+    cache.increment("named:1:3", 1L).block();
+    cache.increment("named:1:3", 1L).block();
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(8L));
+    when(primary.putIfAbsent("named:1:3", 7L)).thenReturn(Mono.just(true));
+    cache.increment("named:1:2", 1L).block();
+
+    verify(primary).putIfAbsent("named:1:3", 7L);
+    verify(primary, never()).increment("named:1:3", 2L);
+  }
+
+  @Test
+  void testRecoveryWritesResetValue() {
+    when(primary.reset(anyString(), anyLong())).thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+    when(secondary.reset(anyString(), anyLong())).thenAnswer(i -> Mono.just(i.getArgument(1)));
+    cache.increment("named:1:3", 1L).block();
+    cache.reset("named:1:3", 0L).block();
+    cache.increment("named:1:3", 4L).block();
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(8L));
+    cache.increment("named:1:2", 1L).block();
+
+    verify(primary).update("named:1:3", 4L);
+    verify(primary, never()).putIfAbsent(anyString(), anyLong());
+  }
+
+  @Test
+  void testJournaledIncrementsAreReplayed(@TempDir Path directory) throws IOException {
+    Journal journal = new Journal("test", directory, 1024, 2, new SimpleMeterRegistry(), Schedulers.immediate());
+    Fallback journaling = new Fallback("journaling", primary, secondary, journal, breaker, new SimpleMeterRegistry());
+
+    StepVerifier.create(journaling.increment("named:1:2", 1L))
+      .expectNext(8L)
+      .verifyComplete();
+    StepVerifier.create(journaling.increment("named:1:2", 2L))
+      .expectNext(10L)
+      .verifyComplete();
+    verify(secondary, never()).increment(anyString(), anyLong());
+    assertEquals(2, journal.pending());
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(1L));
+    journaling.increment("named:1:3", 1L).block();
+
+    assertEquals(0, journal.pending());
+    verify(primary, times(2)).increment("named:1:2", 2L);
+  }
+
+  @Test
+  void testResetIsNotUndoneByJournalReplay(@TempDir Path directory) throws IOException {
+    Journal journal = new Journal("test", directory, 1024, 2, new SimpleMeterRegistry(), Schedulers.immediate());
+    Fallback journaling = new Fallback("journaling", primary, secondary, journal, breaker, new SimpleMeterRegistry());
+    when(primary.reset(anyString(), anyLong())).thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+    when(secondary.reset(anyString(), anyLong())).thenAnswer(i -> Mono.just(i.getArgument(1)));
+    journaling.increment("named:1:3", 1L).block();
+    journaling.reset("named:1:3", 0L).block();
+    journaling.increment("named:1:3", 4L).block();
+
+    assertEquals(1, journal.pending());
+    verify(secondary).increment("named:1:3", 4L);
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(8L));
+    journaling.increment("named:1:2", 1L).block();
+
+    InOrder order = inOrder(primary);
+    order.verify(primary).increment("named:1:3", 1L);
+    order.verify(primary).update("named:1:3", 4L);
+  }
+
+  @Test
+  void testFailedReadFallsBackAndOpensCircuit() {
+    when(primary.get(anyString())).thenReturn(Mono.error(new IllegalStateException("Redis is down")));
+
+    StepVerifier.create(cache.get("named:1:2"))
+      .expectNext(7L)
+      .verifyComplete();
+    cache.get("named:1:2").block();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    verify(primary, times(2)).get("named:1:2");
+  }
+
+  @Test
+  void testDeleteFailsWhileCircuitIsOpen() {
+    cache.increment("named:1:2", 1L).block();
+    cache.increment("named:1:2", 1L).block();
+
+    StepVerifier.create(cache.delete("named:1:2"))
+      .verifyError(IllegalStateException.class);
+    verify(primary, never()).delete(anyString());
+  }
+
+  @Test
+  void testFailedProbeReopensCircuit() {
+    cache.increment("named:1:2", 1L).block();
+    cache.increment("named:1:2", 1L).block();
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    cache.increment("named:1:2", 1L).block();
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    verify(primary, times(3)).increment("named:1:2", 1L);
+  }
+
+  @Test
+  void testCancelledProbeIsReplacedAfterOpenTime() {
+    cache.increment("named:1:2", 1L).block();
+    cache.increment("named:1:2", 1L).block();
+
+    // The probe never completes and its caller goes away: neither success nor failure is reported
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.never());
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .thenCancel()
+      .verify();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNext(7L)
+      .verifyComplete();
+
+    now.addAndGet(Duration.ofSeconds(5).toNanos());
+    when(primary.increment(anyString(), anyLong())).thenReturn(Mono.just(3L));
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNextCount(1)
+      .verifyComplete();
+
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+}
@@ -0,0 +1,106 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvalidatingTest {
+
+  private final Sinks.Many<String> channel = Sinks.many().multicast().directBestEffort();
+  private final List<String> published = new ArrayList<>();
+  private NamedCache<String, Long> local;
+  private Invalidating<Long> cache;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    local = mock(NamedCache.class);
+    when(local.increment(anyString(), anyLong())).thenReturn(Mono.just(5L));
+    when(local.reset(anyString(), anyLong())).thenReturn(Mono.just(0L));
+    when(local.delete(anyString())).thenReturn(Mono.empty());
+    cache = new Invalidating<>("values", "node-a", local, channel.asFlux(), message -> {
+      published.add(message);
+      return Mono.just(1L);
+    }, Duration.ofHours(1), new SimpleMeterRegistry());
+  }
+
+  @Test
+  void testWritesPublishInvalidation() {
+    StepVerifier.create(cache.increment("named:1:2", 1L))
+      .expectNext(5L)
+      .verifyComplete();
+    StepVerifier.create(cache.reset("named:1:3", 0L))
+      .expectNext(0L)
+      .verifyComplete();
+    StepVerifier.create(cache.delete("named:1:4"))
+      .verifyComplete();
+    cache.increment("named:1:2", 1L).block();
+    assertTrue(published.isEmpty());
+
+    cache.flush().block();
+
+    assertEquals(1, published.size());
+    List<String> parts = List.of(published.get(0).split(" "));
+    assertEquals("node-a", parts.get(0));
+    assertEquals(Set.of("named:1:2", "named:1:3", "named:1:4"), Set.copyOf(parts.subList(1, parts.size())));
+    assertEquals(3, parts.size() - 1);
+  }
+
+  @Test
+  void testNothingIsPublishedWithoutChanges() {
+    cache.flush().block();
+
+    assertTrue(published.isEmpty());
+  }
+
+  @Test
+  void testOtherNodeMessageEvictsLocalKey() {
+    channel.tryEmitNext("node-b named:1:2");
+
+    verify(local).evict("named:1:2");
+  }
+
+  @Test
+  void testBatchMessageEvictsEveryKey() {
+    channel.tryEmitNext("node-b named:1:2 named:1:3");
+
+    verify(local).evict("named:1:2");
+    verify(local).evict("named:1:3");
+  }
+
+  @Test
+  void testOwnMessageIsSkipped() {
+    channel.tryEmitNext("node-a named:1:2");
+
+    verify(local, never()).evict(anyString());
+  }
+
+  @Test
+  void testPublishFailureDoesNotFailWrite() {
+    Invalidating<Long> failing = new Invalidating<>("failing", "node-a", local, channel.asFlux(),
+      message -> Mono.error(new IllegalStateException("Redis is down")), Duration.ofHours(1), new SimpleMeterRegistry());
+
+    StepVerifier.create(failing.increment("named:1:2", 1L))
+      .expectNext(5L)
+      .verifyComplete();
+    StepVerifier.create(failing.flush())
+      .verifyComplete();
+  }
+}
@@ -0,0 +1,149 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JournalTest {
+
+  @TempDir
+  Path directory;
+
+  private Journal journal(int recordsPerSegment, int maxSegments) throws IOException {
+    // File operations run inline so that the next segment is ready before the next append
+    return new Journal("test", directory, (long) recordsPerSegment * Journal.RECORD_SIZE, maxSegments,
+      new SimpleMeterRegistry(), Schedulers.immediate());
+  }
+
+  @Test
+  void testReplayAppliesAllEntriesAndRemovesSegments() throws IOException {
+    Journal journal = journal(2, 4);
+    assertTrue(journal.append(1, 10, 5));
+    assertTrue(journal.append(1, 11, 1));
+    assertTrue(journal.append(2, 10, 3));
+    assertEquals(3, journal.pending());
+
+    Queue<Journal.Entry> applied = new ConcurrentLinkedQueue<>();
+    StepVerifier.create(journal.replay(entry -> Mono.fromRunnable(() -> applied.add(entry)), 1))
+      .expectNext(3L)
+      .verifyComplete();
+
+    assertEquals(List.of(10L, 11L, 10L), applied.stream().map(Journal.Entry::counterId).toList());
+    assertEquals(0, journal.pending());
+    // Only the pre-allocated next segment is left
+    assertEquals(1, segments());
+  }
+
+  @Test
+  void testFullJournalRejectsAppends() throws IOException {
+    Journal journal = journal(1, 2);
+
+    assertTrue(journal.append(1, 10, 1));
+    assertTrue(journal.append(1, 10, 1));
+    assertFalse(journal.append(1, 10, 1));
+  }
+
+  @Test
+  void testFailedReplayKeepsRemainingEntries() throws IOException {
+    Journal journal = journal(4, 2);
+    journal.append(1, 10, 1);
+    journal.append(1, 11, 1);
+
+    StepVerifier.create(journal.replay(entry -> entry.counterId() == 11 ?
+        Mono.error(new IllegalStateException("Redis is down")) :
+        Mono.empty(), 1))
+      .verifyError(IllegalStateException.class);
+
+    assertEquals(1, journal.pending());
+    StepVerifier.create(journal.replay(entry -> Mono.empty(), 1))
+      .expectNext(1L)
+      .verifyComplete();
+  }
+
+  @Test
+  void testEntriesSurviveRestart() throws IOException {
+    Journal first = journal(4, 2);
+    first.append(1, 10, 7);
+    first.close();
+
+    Journal second = journal(4, 2);
+    assertEquals(1, second.pending());
+    StepVerifier.create(second.replay(entry -> {
+        assertEquals(7, entry.delta());
+        return Mono.empty();
+      }, 1))
+      .expectNext(1L)
+      .verifyComplete();
+  }
+
+  @Test
+  void testCorruptedEntryIsSkipped() throws IOException {
+    Journal first = journal(4, 2);
+    first.append(1, 10, 7);
+    first.append(1, 11, 1);
+    first.close();
+    try (Stream<Path> files = Files.list(directory);
+         RandomAccessFile file = new RandomAccessFile(files.sorted().findFirst().orElseThrow().toFile(), "rw")) {
+      file.seek(Journal.RECORD_SIZE + 24);
+      file.writeLong(100);
+    }
+
+    Journal second = journal(4, 2);
+    StepVerifier.create(second.replay(entry -> Mono.empty(), 1))
+      .expectNext(1L)
+      .verifyComplete();
+    assertEquals(0, second.pending());
+  }
+
+  private long segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  void testAppendIsRejectedUntilNextSegmentIsReady() throws IOException {
+    List<Runnable> scheduled = new ArrayList<>();
+    Scheduler deferred = Schedulers.fromExecutor(scheduled::add);
+    Journal journal = new Journal("test", directory, Journal.RECORD_SIZE, 4, new SimpleMeterRegistry(), deferred);
+
+    // The first segment is allocated at startup, the next one is left to the scheduler
+    assertTrue(journal.append(1, 10, 1));
+    assertFalse(journal.append(1, 10, 1));
+    assertEquals(1, scheduled.size());
+
+    scheduled.remove(0).run();
+    assertTrue(journal.append(1, 10, 1));
+  }
+
+  @Test
+  void testLeftoverEmptySegmentsAreRemovedOnStart() throws IOException {
+    Journal first = journal(4, 4);
+    first.append(1, 10, 7);
+    first.close();
+    assertEquals(2, segments());
+
+    Journal second = journal(4, 4);
+    assertEquals(1, second.pending());
+    // The segment with the entry and a new pre-allocated one
+    assertEquals(2, segments());
+  }
+}
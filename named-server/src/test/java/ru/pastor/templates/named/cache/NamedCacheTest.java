@@ -4,11 +4,14 @@ import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.time.Duration;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -109,4 +112,61 @@ class NamedCacheTest {
     StepVerifier.create(readOnlyCache.delete("key1"))
       .verifyComplete();
   }
+
+  @Test
+  void testConcurrentMissesShareOneDelegateCall() {
+    when(delegateCache.get("cold")).thenReturn(Mono.delay(Duration.ofMillis(20)).thenReturn(5L));
+
+    StepVerifier.create(Flux.merge(localCache.get("cold"), localCache.get("cold"), localCache.get("cold")))
+      .expectNext(5L, 5L, 5L)
+      .verifyComplete();
+
+    verify(delegateCache, times(1)).get("cold");
+    assertEquals(2.0, meterRegistry.get("Cache_test_coalesced_load_count").counter().count());
+  }
+
+  @Test
+  void testAsyncGetLoadsOnce() {
+    var asyncCache = new NamedCache.Async<>("async", 100, Duration.ofMinutes(10), Duration.ofMinutes(1),
+      meterRegistry, delegateCache, null);
+
+    StepVerifier.create(Flux.merge(asyncCache.get("key1"), asyncCache.get("key1")))
+      .expectNext(10L, 10L)
+      .verifyComplete();
+    StepVerifier.create(asyncCache.get("key1"))
+      .expectNext(10L)
+      .verifyComplete();
+
+    verify(delegateCache, times(1)).get("key1");
+  }
+
+  @Test
+  void testAsyncMissIsNotCached() {
+    when(delegateCache.get("missing")).thenReturn(Mono.empty());
+    var asyncCache = new NamedCache.Async<>("async", 100, Duration.ofMinutes(10), Duration.ofMinutes(1),
+      meterRegistry, delegateCache, null);
+
+    StepVerifier.create(asyncCache.get("missing"))
+      .verifyComplete();
+    StepVerifier.create(asyncCache.get("missing"))
+      .verifyComplete();
+
+    verify(delegateCache, times(2)).get("missing");
+  }
+
+  @Test
+  void testAsyncIncrementUpdatesCache() {
+    when(delegateCache.increment("key1", 5L)).thenReturn(Mono.just(15L));
+    var asyncCache = new NamedCache.Async<>("async", 100, Duration.ofMinutes(10), Duration.ofMinutes(1),
+      meterRegistry, delegateCache, null);
+
+    StepVerifier.create(asyncCache.increment("key1", 5L))
+      .expectNext(15L)
+      .verifyComplete();
+    StepVerifier.create(asyncCache.get("key1"))
+      .expectNext(15L)
+      .verifyComplete();
+
+    verify(delegateCache, never()).get("key1");
+  }
 }
@@ -0,0 +1,61 @@
+package ru.pastor.templates.named.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RedisCodecTest {
+
+  @Test
+  void testValuesAreEncodedAsRedisIntegers() {
+    for (long value : new long[]{0, 7, -7, 10, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      byte[] bytes = RedisCodec.NUMBER.serialize(value);
+      assertArrayEquals(Long.toString(value).getBytes(StandardCharsets.US_ASCII), bytes);
+      assertEquals(value, RedisCodec.NUMBER.deserialize(bytes));
+    }
+  }
+
+  @Test
+  void testDecodeRejectsNonDecimal() {
+    assertThrows(NumberFormatException.class, () -> RedisCodec.decode(ByteBuffer.wrap(new byte[]{'-'})));
+    assertThrows(NumberFormatException.class, () -> RedisCodec.decode(ByteBuffer.wrap("12a".getBytes(StandardCharsets.US_ASCII))));
+    assertThrows(NumberFormatException.class,
+      () -> RedisCodec.decode(ByteBuffer.wrap("9223372036854775808".getBytes(StandardCharsets.US_ASCII))));
+  }
+
+  @Test
+  void testDecodeRejectsNonCanonical() {
+    assertThrows(NumberFormatException.class, () -> RedisCodec.decode(ByteBuffer.wrap("01".getBytes(StandardCharsets.US_ASCII))));
+    assertThrows(NumberFormatException.class, () -> RedisCodec.decode(ByteBuffer.wrap("-0".getBytes(StandardCharsets.US_ASCII))));
+    assertEquals(0L, RedisCodec.decode(ByteBuffer.wrap("0".getBytes(StandardCharsets.US_ASCII))));
+  }
+
+  @Test
+  void testLegacyBinaryValueFailsToRead() {
+    assertThrows(SerializationException.class, () -> RedisCodec.NUMBER.deserialize(BigInteger.valueOf(1000).toByteArray()));
+    // 0x30 0x31 is "01": not a canonical decimal either
+    assertThrows(SerializationException.class, () -> RedisCodec.NUMBER.deserialize(BigInteger.valueOf(12337).toByteArray()));
+  }
+
+  @Test
+  void testLegacyValueIsRewrittenAsDecimal() {
+    // 0x31 0x32 also reads as the decimal "12", which is why legacy values are migrated and not guessed
+    assertArrayEquals("12594".getBytes(StandardCharsets.US_ASCII), RedisFormat.legacy(BigInteger.valueOf(12594).toByteArray()));
+    assertArrayEquals("-5".getBytes(StandardCharsets.US_ASCII), RedisFormat.legacy(BigInteger.valueOf(-5).toByteArray()));
+    assertNull(RedisFormat.legacy(new byte[0]));
+  }
+
+  @Test
+  void testKeysAreLatin1() {
+    assertEquals("named:1:2", RedisCodec.KEY.deserialize(RedisCodec.KEY.serialize("named:1:2")));
+    assertArrayEquals("named:1:2".getBytes(StandardCharsets.UTF_8), RedisCodec.KEY.serialize("named:1:2"));
+  }
+}
@@ -0,0 +1,108 @@
+package ru.pastor.templates.named.cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.core.ReactiveHashOperations;
+import org.springframework.data.redis.core.ReactiveRedisOperations;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RedisFormatTest {
+
+  private ReactiveRedisOperations<String, byte[]> operations;
+  private ReactiveValueOperations<String, byte[]> values;
+  private RedisFormat format;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    operations = mock(ReactiveRedisOperations.class);
+    values = mock(ReactiveValueOperations.class);
+    when(operations.opsForValue()).thenReturn(values);
+    when(values.get(RedisFormat.KEY)).thenReturn(Mono.empty());
+    when(values.set(eq(RedisFormat.KEY), any(byte[].class))).thenReturn(Mono.just(true));
+    when(values.setIfAbsent(eq(RedisFormat.KEY), any(byte[].class))).thenReturn(Mono.just(true));
+    when(operations.execute(any(RedisScript.class), any(List.class), any(List.class))).thenReturn(Flux.just(1L));
+    format = new RedisFormat(operations);
+  }
+
+  @Test
+  void testEmptyRedisIsMarkedDecimal() {
+    when(operations.scan(any(ScanOptions.class))).thenReturn(Flux.empty());
+
+    StepVerifier.create(format.check())
+      .expectNext(true)
+      .verifyComplete();
+
+    verify(values).setIfAbsent(eq(RedisFormat.KEY), any(byte[].class));
+  }
+
+  @Test
+  void testUnmarkedValuesAreReported() {
+    when(operations.scan(any(ScanOptions.class))).thenReturn(Flux.just("named:1:2"));
+
+    StepVerifier.create(format.check())
+      .expectNext(false)
+      .verifyComplete();
+
+    verify(values, never()).setIfAbsent(eq(RedisFormat.KEY), any(byte[].class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testMigrationRewritesStringsAndHashFields() {
+    byte[] string = BigInteger.valueOf(12594).toByteArray();
+    byte[] field = BigInteger.valueOf(1000).toByteArray();
+    ReactiveHashOperations<String, String, byte[]> hashes = mock(ReactiveHashOperations.class);
+    doReturn(hashes).when(operations).opsForHash();
+    when(hashes.entries("named:2")).thenReturn(Flux.just(Map.entry("7", field)));
+    when(operations.scan(any(ScanOptions.class))).thenReturn(Flux.just("named:1:2", "named:2"));
+    when(operations.type("named:1:2")).thenReturn(Mono.just(DataType.STRING));
+    when(operations.type("named:2")).thenReturn(Mono.just(DataType.HASH));
+    when(values.get("named:1:2")).thenReturn(Mono.just(string));
+
+    StepVerifier.create(format.migrate())
+      .expectNext(2L)
+      .verifyComplete();
+
+    verify(operations).execute(any(RedisScript.class), eq(List.of("named:1:2")),
+      argThat((List<Object> args) -> args.get(0) == string && decimal(args.get(1), "12594")));
+    verify(operations).execute(any(RedisScript.class), eq(List.of("named:2")),
+      argThat((List<Object> args) -> decimal(args.get(0), "7") && args.get(1) == field && decimal(args.get(2), "1000")));
+    verify(values).set(eq(RedisFormat.KEY), any(byte[].class));
+  }
+
+  @Test
+  void testMarkedRedisIsNotMigratedAgain() {
+    when(values.get(RedisFormat.KEY)).thenReturn(Mono.just("decimal".getBytes(StandardCharsets.US_ASCII)));
+
+    StepVerifier.create(format.migrate())
+      .expectNext(0L)
+      .verifyComplete();
+
+    verify(operations, never()).scan(any(ScanOptions.class));
+  }
+
+  private static boolean decimal(Object bytes, String expected) {
+    return new String((byte[]) bytes, StandardCharsets.US_ASCII).equals(expected);
+  }
+}
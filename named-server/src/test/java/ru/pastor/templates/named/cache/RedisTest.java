@@ -1,21 +1,32 @@
 package ru.pastor.templates.named.cache;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.core.ReactiveHashOperations;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
 import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
-import static org.mockito.Mockito.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -34,7 +45,7 @@ class RedisTest {
 
     when(operations.opsForValue()).thenReturn(valueOperations);
     when(valueOperations.get(anyString())).thenReturn(Mono.just(10));
-    when(valueOperations.set(anyString(), anyInt())).thenReturn(Mono.just(true));
+    when(valueOperations.set(anyString(), anyLong())).thenReturn(Mono.just(true));
     when(operations.delete(anyString())).thenReturn(Mono.just(1L));
     when(operations.opsForValue().increment(anyString(), anyLong()))
       .thenAnswer(args -> Mono.just(values.getOrDefault(
@@ -62,8 +73,8 @@ class RedisTest {
   @Test
   void testIncrement() {
     // Test updating a value in Redis
-    StepVerifier.create(redis.increment("key1", 20))
-      .expectNext(20)
+    StepVerifier.create(redis.increment("key1", 20L))
+      .expectNext(20L)
       .verifyComplete();
 
     // Verify that the operations were called
@@ -85,9 +96,9 @@ class RedisTest {
     // Setup mock to return an error
     when(valueOperations.get("error-key")).thenReturn(Mono.error(new RuntimeException("Test error")));
 
-    // Test getting a value with an error - should return empty Mono due to error handling
+    // Test getting a value with an error - the error reaches the caller instead of a miss
     StepVerifier.create(redis.get("error-key"))
-      .verifyComplete();
+      .verifyErrorMessage("Test error");
 
     // Verify that the operations were called
     verify(operations, times(3)).opsForValue();
@@ -96,11 +107,11 @@ class RedisTest {
   @Test
   void testIncrementWithError() {
     // Setup mock to return an error
-    when(valueOperations.set("error-key", 20)).thenReturn(Mono.error(new RuntimeException("Test error")));
+    when(valueOperations.set("error-key", 20L)).thenReturn(Mono.error(new RuntimeException("Test error")));
 
     // Test updating a value with an error - should return empty Mono due to error handling
-    StepVerifier.create(redis.increment("error-key", 20))
-      .expectNext(20)
+    StepVerifier.create(redis.increment("error-key", 20L))
+      .expectNext(20L)
       .verifyComplete();
 
     // Verify that the operations were called
@@ -112,11 +123,98 @@ class RedisTest {
     // Setup mock to return an error
     when(operations.delete("error-key")).thenReturn(Mono.error(new RuntimeException("Test error")));
 
-    // Test deleting a value with an error - should return empty Mono due to error handling
+    // Test deleting a value with an error - the error reaches the caller
     StepVerifier.create(redis.delete("error-key"))
-      .verifyComplete();
+      .verifyErrorMessage("Test error");
 
     // Verify that the operations were called
     verify(operations).delete("error-key");
   }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testHashLayout() {
+    ReactiveHashOperations<String, Object, Object> hashOperations = mock(ReactiveHashOperations.class);
+    when(operations.opsForHash()).thenReturn(hashOperations);
+    when(hashOperations.increment("named:1", "2", 5L)).thenReturn(Mono.just(15L));
+    when(hashOperations.entries("named:1"))
+      .thenReturn(Flux.just(Map.entry("2", 15), Map.entry("3", 7)));
+    Redis hash = new Redis(operations, Redis.Layout.HASH, null);
+
+    // Counter id becomes the field of the per-user hash
+    StepVerifier.create(hash.increment("named:1:2", 5L))
+      .expectNext(15L)
+      .verifyComplete();
+    verify(hashOperations).increment("named:1", "2", 5L);
+
+    // All counters of the user are read with one HGETALL and keyed back to full cache keys
+    StepVerifier.create(hash.group("named:1"))
+      .assertNext(values -> assertEquals(Map.of("named:1:2", 15L, "named:1:3", 7L), values))
+      .verifyComplete();
+  }
+
+  @Test
+  void testStringLayoutHasNoGroups() {
+    StepVerifier.create(redis.group("named:1"))
+      .verifyComplete();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testIncrementPublishesWithScript() {
+    when(operations.execute(any(RedisScript.class), any(List.class), any(List.class), any(), any()))
+      .thenReturn(Flux.just(11L));
+    Redis publishing = new Redis(operations, Redis.Layout.STRING, "counter_updates");
+
+    // Increment and stream append are a single script call
+    StepVerifier.create(publishing.increment("named:5:7", 3L))
+      .expectNext(11L)
+      .verifyComplete();
+
+    assertTrue(publishing.publishes());
+    assertFalse(redis.publishes());
+    verify(operations).execute(any(RedisScript.class), eq(List.of("named:5:7", "counter_updates")),
+      eq(List.of("3", "5", "7", "0")), any(), any());
+    verify(valueOperations, never()).increment(anyString(), anyLong());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testMissIsRestoredFromSource() {
+    NamedCache<String, Long> source = mock(NamedCache.class);
+    when(source.get("named:5:7")).thenReturn(Mono.delay(Duration.ofMillis(20)).thenReturn(42L));
+    when(valueOperations.get("named:5:7")).thenReturn(Mono.empty(), Mono.empty(), Mono.just(42));
+    when(valueOperations.setIfAbsent("named:5:7", 42L)).thenReturn(Mono.just(true));
+    Redis restoring = new Redis(operations, Redis.Layout.STRING, null, source,
+      new SingleFlight<>("test", 1, new SimpleMeterRegistry()));
+
+    // Concurrent misses share one load from the source, the value is seeded with SET NX
+    StepVerifier.create(Flux.merge(restoring.get("named:5:7"), restoring.get("named:5:7")))
+      .expectNext(42L, 42L)
+      .verifyComplete();
+
+    verify(source, times(1)).get("named:5:7");
+    verify(valueOperations, times(1)).setIfAbsent("named:5:7", 42L);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testIncrementRestoresMissingValue() {
+    NamedCache<String, Long> source = mock(NamedCache.class);
+    when(source.get("named:5:7")).thenReturn(Mono.just(42L));
+    when(valueOperations.setIfAbsent("named:5:7", 42L)).thenReturn(Mono.just(true));
+    when(valueOperations.get("named:5:7")).thenReturn(Mono.just(42));
+    // Increment of an existing value returns nil on a miss, the second attempt increments restored value
+    when(operations.execute(any(RedisScript.class), any(List.class), eq(List.of("1", "5", "7", "1")), any(), any()))
+      .thenReturn(Flux.empty());
+    when(valueOperations.increment("named:5:7", 1L)).thenReturn(Mono.just(43L));
+    Redis restoring = new Redis(operations, Redis.Layout.STRING, null, source,
+      new SingleFlight<>("test", 1, new SimpleMeterRegistry()));
+
+    StepVerifier.create(restoring.increment("named:5:7", 1L))
+      .expectNext(43L)
+      .verifyComplete();
+
+    verify(valueOperations).setIfAbsent("named:5:7", 42L);
+  }
 }
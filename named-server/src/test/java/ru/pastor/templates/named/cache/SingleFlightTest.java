@@ -0,0 +1,61 @@
+package ru.pastor.templates.named.cache;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SingleFlightTest {
+
+  private final SingleFlight<String, Long> flight = new SingleFlight<>("test", 1, new SimpleMeterRegistry());
+
+  @Test
+  void testConcurrentLoadsShareResult() {
+    Sinks.One<Long> value = Sinks.one();
+    AtomicInteger loads = new AtomicInteger();
+    Mono<Long> first = flight.load("named:1:2", key -> {
+      loads.incrementAndGet();
+      return value.asMono();
+    });
+    Mono<Long> second = flight.load("named:1:2", key -> {
+      loads.incrementAndGet();
+      return Mono.just(2L);
+    });
+
+    StepVerifier.create(Mono.zip(first, second))
+      .then(() -> value.tryEmitValue(1L))
+      .assertNext(pair -> assertEquals(pair.getT1(), pair.getT2()))
+      .verifyComplete();
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void testCompletedLoadIsNotReused() {
+    StepVerifier.create(flight.load("named:1:2", key -> Mono.just(1L)))
+      .expectNext(1L)
+      .verifyComplete();
+    StepVerifier.create(flight.load("named:1:2", key -> Mono.just(2L)))
+      .expectNext(2L)
+      .verifyComplete();
+  }
+
+  @Test
+  void testUnboundedLoadsDoNotWaitForEachOther() {
+    SingleFlight<String, Long> unbounded = new SingleFlight<>("unbounded", new SimpleMeterRegistry());
+    Sinks.One<Long> slow = Sinks.one();
+
+    StepVerifier.create(unbounded.load("named:1:2", key -> slow.asMono()))
+      .expectSubscription()
+      .then(() -> StepVerifier.create(unbounded.load("named:1:3", key -> Mono.just(3L)))
+        .expectNext(3L)
+        .verifyComplete())
+      .then(() -> slow.tryEmitValue(2L))
+      .expectNext(2L)
+      .verifyComplete();
+  }
+}
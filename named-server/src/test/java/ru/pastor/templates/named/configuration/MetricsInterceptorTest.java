@@ -0,0 +1,118 @@
+package ru.pastor.templates.named.configuration;
+
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.pastor.templates.named.server.grpc.CountValue;
+import ru.pastor.templates.named.server.grpc.CountValueBatch;
+import ru.pastor.templates.named.server.grpc.Status;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MetricsInterceptorTest {
+
+  private static final String METHOD = "named.CountService/Increment";
+
+  private SimpleMeterRegistry registry;
+  private MetricsInterceptor interceptor;
+  private ServerCall<Object, Object> call;
+  private ServerCallHandler<Object, Object> handler;
+  private ServerCall.Listener<Object> listener;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    interceptor = new MetricsInterceptor(registry, List.of(Duration.ofMillis(5), Duration.ofSeconds(1)));
+    MethodDescriptor<Object, Object> descriptor = MethodDescriptor.newBuilder()
+      .setType(MethodDescriptor.MethodType.UNARY)
+      .setFullMethodName(METHOD)
+      .setRequestMarshaller(mock(MethodDescriptor.Marshaller.class))
+      .setResponseMarshaller(mock(MethodDescriptor.Marshaller.class))
+      .build();
+    call = mock(ServerCall.class);
+    when(call.getMethodDescriptor()).thenReturn(descriptor);
+    handler = mock(ServerCallHandler.class);
+    listener = mock(ServerCall.Listener.class);
+  }
+
+  @Test
+  void testCompletedCall() {
+    when(handler.startCall(any(), any())).thenAnswer(i -> {
+      ServerCall<Object, Object> measured = i.getArgument(0);
+      assertEquals(1.0, registry.get("Grpc_server_in_flight_count").gauge().value());
+      measured.sendMessage(CountValue.newBuilder().setStatus(Status.NOT_FOUND).build());
+      measured.close(io.grpc.Status.OK, new Metadata());
+      return listener;
+    });
+
+    ServerCall.Listener<Object> result = interceptor.interceptCall(call, new Metadata(), handler);
+    result.onMessage("request");
+    result.onCancel();
+
+    assertEquals(0.0, registry.get("Grpc_server_in_flight_count").gauge().value());
+    assertEquals(1.0, registry.get("Grpc_server_received_message_count").counter().count());
+    assertEquals(1.0, registry.get("Grpc_server_sent_message_count").counter().count());
+    assertEquals(1.0, registry.get("Grpc_server_reply_status_count").tag("status", "NOT_FOUND").counter().count());
+    Timer timer = registry.get("Grpc_server_call_time").tag("method", METHOD).tag("code", "OK").timer();
+    assertEquals(1, timer.count());
+    CountAtBucket[] buckets = timer.takeSnapshot().histogramCounts();
+    assertEquals(2, buckets.length);
+    assertEquals(TimeUnit.SECONDS.toNanos(1), (long) buckets[1].bucket(TimeUnit.NANOSECONDS));
+    assertNull(registry.find("Grpc_server_call_time").tag("code", "CANCELLED").timer());
+  }
+
+  @Test
+  void testBatchRepliesCountEachValue() {
+    when(handler.startCall(any(), any())).thenAnswer(i -> {
+      ServerCall<Object, Object> measured = i.getArgument(0);
+      measured.sendMessage(CountValueBatch.newBuilder()
+        .addValues(CountValue.newBuilder().setStatus(Status.SUCCESS))
+        .addValues(CountValue.newBuilder().setStatus(Status.FAILURE))
+        .addValues(CountValue.newBuilder().setStatus(Status.FAILURE))
+        .build());
+      return listener;
+    });
+
+    interceptor.interceptCall(call, new Metadata(), handler);
+
+    assertEquals(1.0, registry.get("Grpc_server_reply_status_count").tag("status", "SUCCESS").counter().count());
+    assertEquals(2.0, registry.get("Grpc_server_reply_status_count").tag("status", "FAILURE").counter().count());
+    assertEquals(1.0, registry.get("Grpc_server_in_flight_count").gauge().value());
+  }
+
+  @Test
+  void testCancelledCall() {
+    when(handler.startCall(any(), any())).thenReturn(listener);
+
+    interceptor.interceptCall(call, new Metadata(), handler).onCancel();
+
+    assertEquals(0.0, registry.get("Grpc_server_in_flight_count").gauge().value());
+    assertEquals(1, registry.get("Grpc_server_call_time").tag("code", "CANCELLED").timer().count());
+  }
+
+  @Test
+  void testFailedStart() {
+    when(handler.startCall(any(), any())).thenThrow(new IllegalStateException("Handler failed"));
+
+    assertThrows(IllegalStateException.class, () -> interceptor.interceptCall(call, new Metadata(), handler));
+
+    assertEquals(0.0, registry.get("Grpc_server_in_flight_count").gauge().value());
+    assertEquals(1, registry.get("Grpc_server_call_time").tag("code", "UNKNOWN").timer().count());
+  }
+}
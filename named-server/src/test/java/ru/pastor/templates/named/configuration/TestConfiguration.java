@@ -12,6 +12,8 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.data.r2dbc.core.R2dbcEntityTemplate;
 import org.springframework.data.redis.core.ReactiveRedisOperations;
 import reactor.core.publisher.Mono;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
 import ru.pastor.templates.named.cache.NamedCache;
 import ru.pastor.templates.named.repository.CatalogueRepository;
 import ru.pastor.templates.named.repository.CounterRepository;
@@ -22,7 +24,6 @@ import ru.pastor.templates.named.service.NamedCountService;
 import java.time.Duration;
 
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
@@ -73,21 +74,27 @@ public class TestConfiguration {
   @Bean("NamedCache.Redis")
   @Primary
   @SuppressWarnings("unchecked")
-  public NamedCache<String, Integer> mockRedisCache() {
-    NamedCache<String, Integer> mock = mock(NamedCache.class);
-    when(mock.get(anyString())).thenReturn(Mono.just(1));
-    when(mock.increment(anyString(), anyInt()))
-      .thenAnswer(i -> Mono.just(((int)i.getArgument(1)) + 1));
+  public NamedCache<String, Long> mockRedisCache() {
+    NamedCache<String, Long> mock = mock(NamedCache.class);
+    when(mock.get(anyString())).thenReturn(Mono.just(1L));
+    when(mock.increment(anyString(), anyLong()))
+      .thenAnswer(i -> Mono.just(((long) i.getArgument(1)) + 1));
     when(mock.delete(anyString())).thenReturn(Mono.empty());
+    when(mock.group(anyString())).thenReturn(Mono.empty());
     return mock;
   }
 
   @Bean("NamedCache.Values")
-  public NamedCache<String, Integer> valuesNamedCache(MeterRegistry registry,
-                                                      @Qualifier("NamedCache.Redis") NamedCache<String, Integer> redisCache) {
+  public NamedCache<String, Long> valuesNamedCache(MeterRegistry registry,
+                                                   @Qualifier("NamedCache.Redis") NamedCache<String, Long> redisCache) {
     return new NamedCache.Local<>("values", Duration.ofHours(1), registry, redisCache, null);
   }
 
+  @Bean
+  public Counters counters(@Qualifier("NamedCache.Values") NamedCache<String, Long> values) {
+    return new Counters.Standard(values);
+  }
+
   @Bean("NamedCache.Catalogue")
   @SuppressWarnings("unchecked")
   public NamedCache<String, Integer> mockCatalogueCache() {
@@ -98,17 +105,23 @@ public class TestConfiguration {
     return mock;
   }
 
+  @Bean
+  public CatalogueIndex catalogueIndex(@Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue) {
+    return new CatalogueIndex.Standard(catalogue, null);
+  }
+
   @Bean
   public NamedCountService namedCountService(
-    @Qualifier("NamedCache.Values") NamedCache<String, Integer> values,
-    @Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue,
-    NamedCountNotification notification) {
-    return new NamedCountService.Standard(values, catalogue, notification);
+    Counters values,
+    CatalogueIndex catalogue,
+    NamedCountNotification notification,
+    CounterRepository counterRepository) {
+    return new NamedCountService.Standard(values, catalogue, notification, counterRepository);
   }
 
   @Bean
   public NamedCatalogueService namedCatalogueService(
-    @Qualifier("NamedCache.Catalogue") NamedCache<String, Integer> catalogue,
+    CatalogueIndex catalogue,
     CatalogueRepository catalogueRepository) {
     return new NamedCatalogueService.Standard(catalogue, catalogueRepository);
   }
@@ -10,13 +10,12 @@ import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 import ru.pastor.templates.named.service.BasisTestSuit;
 
+import java.util.List;
 import java.util.Objects;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 
-//FIXME: Поправить для H2 либо как-то еще решить проблему
-@Disabled
 class CounterRepositoryTest extends BasisTestSuit {
 
   @Autowired
@@ -45,6 +44,7 @@ class CounterRepositoryTest extends BasisTestSuit {
   }
 
   @Test
+  @Disabled("H2 has no INSERT ... ON CONFLICT, run against PostgreSQL")
   void testCreateCounter() {
     // Test creating a counter
     StepVerifier.create(counterRepository.create(catalogueId, 1L, 10L))
@@ -125,10 +125,117 @@ class CounterRepositoryTest extends BasisTestSuit {
   }
 
   @Test
+  @Disabled("H2 has no INSERT ... ON CONFLICT, run against PostgreSQL")
   void testUpdateNonExistentCounter() {
     // Test updating a counter that doesn't exist
     StepVerifier.create(counterRepository.update(catalogueId, 999L, 20L))
       .expectNextMatches(Objects::nonNull)
       .verifyComplete();
   }
+
+  @Test
+  @Disabled("H2 has no INSERT ... ON CONFLICT, run against PostgreSQL")
+  void testUpsertAll() {
+    // Repeated counter of the same user must be written once with the last value
+    StepVerifier.create(counterRepository.upsertAll(List.of(
+        new CounterRepository.Change(catalogueId, 1L, 10L),
+        new CounterRepository.Change(catalogueId, 2L, 20L),
+        new CounterRepository.Change(catalogueId, 1L, 30L))))
+      .expectNext(2L)
+      .verifyComplete();
+
+    StepVerifier.create(counterRepository.get(catalogueId, 1L))
+      .assertNext(counter -> assertEquals(30L, counter.value()))
+      .verifyComplete();
+  }
+
+  @Test
+  @Disabled("H2 has no INSERT ... ON CONFLICT, run against PostgreSQL")
+  void testIncrementReturnsNewValue() {
+    StepVerifier.create(counterRepository.increment(catalogueId, 1L, 5L))
+      .expectNext(5L)
+      .verifyComplete();
+    StepVerifier.create(counterRepository.increment(catalogueId, 1L, 3L))
+      .expectNext(8L)
+      .verifyComplete();
+  }
+
+  @Test
+  void testUpsertRowsAreDedupedAndChunked() {
+    List<List<CounterRepository.Change>> chunks = CounterRepository.Postgres.chunks(List.of(
+      new CounterRepository.Change(1, 1, 10),
+      new CounterRepository.Change(2, 1, 20),
+      new CounterRepository.Change(1, 1, 30),
+      new CounterRepository.Change(1, 2, 40),
+      new CounterRepository.Change(3, 1, 50),
+      new CounterRepository.Change(2, 1, 60),
+      new CounterRepository.Change(4, 1, 70)), 2);
+
+    // A repeated counter keeps its first position and its last value
+    assertEquals(List.of(
+      List.of(new CounterRepository.Change(1, 1, 30), new CounterRepository.Change(2, 1, 60)),
+      List.of(new CounterRepository.Change(1, 2, 40), new CounterRepository.Change(3, 1, 50)),
+      List.of(new CounterRepository.Change(4, 1, 70))), chunks);
+    assertEquals(List.of(), CounterRepository.Postgres.chunks(List.of(), 2));
+  }
+
+  @Test
+  void testList() {
+    int second = catalogue("test-counter-2");
+    insert(catalogueId, 3L, 7L);
+    insert(second, 3L, 8L);
+    insert(catalogueId, 4L, 9L);
+
+    // Keyset page starts after the given counter id
+    StepVerifier.create(counterRepository.list(3L, "", 0L, 10))
+      .assertNext(counter -> assertEquals(7L, counter.value()))
+      .assertNext(counter -> assertEquals(8L, counter.value()))
+      .verifyComplete();
+    StepVerifier.create(counterRepository.list(3L, "", 0L, 1))
+      .assertNext(counter -> assertEquals(7L, counter.value()))
+      .verifyComplete();
+    StepVerifier.create(counterRepository.list(3L, "", catalogueId, 10))
+      .assertNext(counter -> assertEquals(8L, counter.value()))
+      .verifyComplete();
+    StepVerifier.create(counterRepository.list(3L, "no-such-prefix", 0L, 10))
+      .verifyComplete();
+  }
+
+  @Test
+  void testListEscapesLikePattern() {
+    int underscore = catalogue("a_b");
+    int percent = catalogue("a%b");
+    int plain = catalogue("axb");
+    insert(underscore, 1L, 1L);
+    insert(percent, 1L, 2L);
+    insert(plain, 1L, 3L);
+
+    // "_" and "%" in a prefix are matched literally, not as wildcards
+    StepVerifier.create(counterRepository.list(1L, "a_", 0L, 10))
+      .assertNext(counter -> assertEquals("a_b", counter.catalogue().name()))
+      .verifyComplete();
+    StepVerifier.create(counterRepository.list(1L, "a%", 0L, 10))
+      .assertNext(counter -> assertEquals("a%b", counter.catalogue().name()))
+      .verifyComplete();
+    StepVerifier.create(counterRepository.list(1L, "a", 0L, 10))
+      .expectNextCount(3)
+      .verifyComplete();
+  }
+
+  private int catalogue(String name) {
+    return Objects.requireNonNull(Mono.from(databaseClient.sql(
+        "INSERT INTO named.counter_catalogue (name, description) VALUES (:name, :name)")
+      .bind("name", name)
+      .filter(statement -> statement.returnGeneratedValues("id"))
+      .map(row -> row.get("id", Integer.class)).first()).block());
+  }
+
+  private void insert(long counterId, long userId, long value) {
+    Mono.from(databaseClient.sql(
+        "INSERT INTO named.counter_values (counter_id, user_id, \"value\") VALUES (:counterId, :userId, :value)")
+      .bind("counterId", counterId)
+      .bind("userId", userId)
+      .bind("value", value)
+      .then()).block();
+  }
 }
@@ -22,6 +22,7 @@ import ru.pastor.templates.named.configuration.TestConfiguration;
     "spring.r2dbc.pool.validation-query=SELECT 1",
     "spring.application.name=named-count-test",
     "spring.data.redis.host=localhost",
+    "app.catalogue.notify.enabled=false",
     "grpc.server.in-process-name=test",
     "grpc.server.port=-1",
     "grpc.client.inProcess.address=in-process:test"
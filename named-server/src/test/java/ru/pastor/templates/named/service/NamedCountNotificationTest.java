@@ -0,0 +1,286 @@
+package ru.pastor.templates.named.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.Record;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.ReactiveStreamOperations;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ru.pastor.templates.named.repository.CounterRepository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NamedCountNotificationTest {
+
+  @Test
+  void testStringStrategyKeepsUserAndCounter() {
+    var strategy = NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.STRING;
+    Record<String, ?> record = strategy.create(10, 2, 7);
+
+    var read = strategy.read(record);
+
+    assertTrue(read.isPresent());
+    assertEquals(new NamedCountNotification.NamedStream.ChangeValue(10, 2, 7), read.get());
+  }
+
+  @Test
+  void testNumberStrategyKeepsUserAndCounter() {
+    var strategy = NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.NUMBER;
+    Record<String, ?> record = StreamRecords.mapBacked(Map.of("user-id", 10L, "counter-id", 2L, "value", 7L))
+      .withStreamKey("counter_updates");
+
+    var read = strategy.read(record);
+
+    assertTrue(read.isPresent());
+    assertEquals(new NamedCountNotification.NamedStream.ChangeValue(10, 2, 7), read.get());
+  }
+
+  @Test
+  void testBatchSizeGrowsWhileFastAndFull() {
+    var batchSize = new NamedCountNotification.NamedStream.BatchSize(10, 120, Duration.ofMillis(100));
+    assertEquals(100, batchSize.get());
+
+    batchSize.record(Duration.ofMillis(5), 100);
+    assertEquals(110, batchSize.get());
+
+    // A partially filled batch means there is no backlog: keep the size
+    batchSize.record(Duration.ofMillis(5), 3);
+    assertEquals(110, batchSize.get());
+
+    batchSize.record(Duration.ofMillis(5), 110);
+    batchSize.record(Duration.ofMillis(5), 120);
+    assertEquals(120, batchSize.get());
+  }
+
+  @Test
+  void testBatchSizeShrinksWhenSlow() {
+    var batchSize = new NamedCountNotification.NamedStream.BatchSize(10, 1000, Duration.ofMillis(100));
+
+    batchSize.record(Duration.ofMillis(500), 100);
+    assertEquals(50, batchSize.get());
+
+    for (int i = 0; i < 10; i++) {
+      batchSize.record(Duration.ofMillis(500), 100);
+    }
+    assertEquals(10, batchSize.get());
+  }
+
+  @Test
+  void testBatchSizeShrinksOnFailure() {
+    var batchSize = new NamedCountNotification.NamedStream.BatchSize(10, 1000, Duration.ofMillis(100));
+
+    // A fast failure must not be taken as a reason to grow the batch
+    batchSize.failed();
+    assertEquals(50, batchSize.get());
+
+    for (int i = 0; i < 10; i++) {
+      batchSize.failed();
+    }
+    assertEquals(10, batchSize.get());
+  }
+
+  @Test
+  void testLagIsReadFromGroupInfo() {
+    var group = StreamInfo.XInfoGroup.fromList(List.of(
+      "name", "counter-updates-group", "consumers", 1L, "pending", 2L, "last-delivered-id", "5-0", "lag", 3L));
+    var legacy = StreamInfo.XInfoGroup.fromList(List.of(
+      "name", "counter-updates-group", "consumers", 1L, "pending", 2L, "last-delivered-id", "5-0"));
+
+    assertEquals(3, NamedCountNotification.NamedStream.lag(group));
+    assertEquals(-1, NamedCountNotification.NamedStream.lag(legacy));
+  }
+
+  @Test
+  void testAgeIsTakenFromRecordId() {
+    assertEquals(250, NamedCountNotification.NamedStream.age(RecordId.of(1000, 3), 1250));
+    assertEquals(0, NamedCountNotification.NamedStream.age(RecordId.of(2000, 0), 1250));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testFailedBatchIsReadAgainBeforeNewMessages() {
+    ReactiveRedisTemplate<String, String> template = mock(ReactiveRedisTemplate.class);
+    ReactiveStreamOperations<String, Object, Object> operations = mock(ReactiveStreamOperations.class);
+    doReturn(operations).when(template).opsForStream();
+    MapRecord<String, Object, Object> message = StreamRecords.<String, Object, Object>mapBacked(
+        Map.of("user-id", "1", "counter-id", "2", "value", "3"))
+      .withStreamKey(NamedCountNotification.NamedStream.STREAM_KEY)
+      .withId(RecordId.of(1000, 0));
+    List<MapRecord<String, Object, Object>> unacknowledged = new ArrayList<>(List.of(message));
+    List<String> offsets = new ArrayList<>();
+    when(operations.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+      .thenAnswer(i -> {
+        StreamOffset<String> offset = i.getArgument(2);
+        offsets.add(offset.getOffset().getOffset());
+        return "0".equals(offset.getOffset().getOffset()) ? Flux.fromIterable(List.copyOf(unacknowledged)) : Flux.empty();
+      });
+    when(operations.acknowledge(eq(NamedCountNotification.NamedStream.STREAM_KEY), any(String.class), any(RecordId[].class)))
+      .thenAnswer(i -> {
+        unacknowledged.clear();
+        return Mono.just(1L);
+      });
+    CounterRepository repository = mock(CounterRepository.class);
+    when(repository.upsertAll(anyList()))
+      .thenReturn(Mono.error(new IllegalStateException("Database is down")))
+      .thenReturn(Mono.just(1L));
+    var stream = new NamedCountNotification.NamedStream(template,
+      NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.STRING, repository, new SimpleMeterRegistry(),
+      new NamedCountNotification.NamedStream.BatchSize(10, 100, Duration.ofMillis(100)), Duration.ofSeconds(10), Duration.ZERO, 3);
+
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(1L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+
+    assertEquals(List.of("0", "0", "0", ">"), offsets);
+    verify(repository, times(2)).upsertAll(List.of(new CounterRepository.Change(2, 1, 3)));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testRejectedRowIsDroppedAfterMaxAttempts() {
+    ReactiveRedisTemplate<String, String> template = mock(ReactiveRedisTemplate.class);
+    ReactiveStreamOperations<String, Object, Object> operations = mock(ReactiveStreamOperations.class);
+    doReturn(operations).when(template).opsForStream();
+    List<MapRecord<String, Object, Object>> unacknowledged = new ArrayList<>();
+    for (String counter : new String[] {"2", "9", "3"}) {
+      unacknowledged.add(StreamRecords.<String, Object, Object>mapBacked(Map.of("user-id", "1", "counter-id", counter, "value", "5"))
+        .withStreamKey(NamedCountNotification.NamedStream.STREAM_KEY)
+        .withId(RecordId.of(1000, unacknowledged.size())));
+    }
+    List<String> offsets = new ArrayList<>();
+    when(operations.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+      .thenAnswer(i -> {
+        StreamOffset<String> offset = i.getArgument(2);
+        offsets.add(offset.getOffset().getOffset());
+        return "0".equals(offset.getOffset().getOffset()) ? Flux.fromIterable(List.copyOf(unacknowledged)) : Flux.empty();
+      });
+    when(operations.acknowledge(eq(NamedCountNotification.NamedStream.STREAM_KEY), any(String.class), any(RecordId[].class)))
+      .thenAnswer(i -> {
+        unacknowledged.clear();
+        return Mono.just(3L);
+      });
+    // Counter 9 violates a foreign key: the whole batch fails, and so does its own row
+    CounterRepository repository = mock(CounterRepository.class);
+    when(repository.upsertAll(anyList()))
+      .thenReturn(Mono.error(new DataIntegrityViolationException("counter 9 is not in catalogue")));
+    when(repository.upsertAll(List.of(new CounterRepository.Change(2, 1, 5)))).thenReturn(Mono.just(1L));
+    when(repository.upsertAll(List.of(new CounterRepository.Change(3, 1, 5)))).thenReturn(Mono.just(1L));
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    var stream = new NamedCountNotification.NamedStream(template,
+      NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.STRING, repository, registry,
+      new NamedCountNotification.NamedStream.BatchSize(10, 100, Duration.ofMillis(100)), Duration.ofSeconds(10), Duration.ZERO, 2);
+
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(2L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(0L)
+      .verifyComplete();
+
+    assertEquals(List.of("0", "0", "0", ">"), offsets);
+    assertEquals(1.0, registry.get("Stream_" + NamedCountNotification.NamedStream.STREAM_KEY + "_rejected_count").counter().count());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testOutageDoesNotDropRows() {
+    ReactiveRedisTemplate<String, String> template = mock(ReactiveRedisTemplate.class);
+    ReactiveStreamOperations<String, Object, Object> operations = mock(ReactiveStreamOperations.class);
+    doReturn(operations).when(template).opsForStream();
+    MapRecord<String, Object, Object> message = StreamRecords.<String, Object, Object>mapBacked(
+        Map.of("user-id", "1", "counter-id", "2", "value", "3"))
+      .withStreamKey(NamedCountNotification.NamedStream.STREAM_KEY)
+      .withId(RecordId.of(1000, 0));
+    when(operations.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+      .thenReturn(Flux.just(message));
+    CounterRepository repository = mock(CounterRepository.class);
+    when(repository.upsertAll(anyList())).thenReturn(Mono.error(new IllegalStateException("Database is down")));
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    var stream = new NamedCountNotification.NamedStream(template,
+      NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.STRING, repository, registry,
+      new NamedCountNotification.NamedStream.BatchSize(10, 100, Duration.ofMillis(100)), Duration.ofSeconds(10), Duration.ZERO, 1);
+
+    for (int i = 0; i < 3; i++) {
+      StepVerifier.create(stream.poll("group", "consumer"))
+        .expectNext(0L)
+        .verifyComplete();
+    }
+
+    verify(operations, never()).acknowledge(any(String.class), any(String.class), any(RecordId[].class));
+    assertEquals(0.0, registry.get("Stream_" + NamedCountNotification.NamedStream.STREAM_KEY + "_rejected_count").counter().count());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testRepeatedCountersAreCountedFromWrittenRows() {
+    ReactiveRedisTemplate<String, String> template = mock(ReactiveRedisTemplate.class);
+    ReactiveStreamOperations<String, Object, Object> operations = mock(ReactiveStreamOperations.class);
+    doReturn(operations).when(template).opsForStream();
+    List<MapRecord<String, Object, Object>> messages = new ArrayList<>();
+    for (String value : new String[] {"1", "2", "3"}) {
+      messages.add(StreamRecords.<String, Object, Object>mapBacked(Map.of("user-id", "1", "counter-id", "2", "value", value))
+        .withStreamKey(NamedCountNotification.NamedStream.STREAM_KEY)
+        .withId(RecordId.of(1000, messages.size())));
+    }
+    when(operations.read(any(Consumer.class), any(StreamReadOptions.class), any(StreamOffset.class)))
+      .thenReturn(Flux.fromIterable(messages));
+    when(operations.acknowledge(eq(NamedCountNotification.NamedStream.STREAM_KEY), any(String.class), any(RecordId[].class)))
+      .thenReturn(Mono.just(3L));
+    CounterRepository repository = mock(CounterRepository.class);
+    when(repository.upsertAll(anyList())).thenReturn(Mono.just(1L));
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    var stream = new NamedCountNotification.NamedStream(template,
+      NamedCountNotification.NamedStream.ChangeValue.ChangeStrategy.STRING, repository, registry,
+      new NamedCountNotification.NamedStream.BatchSize(10, 100, Duration.ofMillis(100)), Duration.ofSeconds(10), Duration.ZERO, 3);
+
+    StepVerifier.create(stream.poll("group", "consumer"))
+      .expectNext(1L)
+      .verifyComplete();
+
+    verify(repository).upsertAll(List.of(
+      new CounterRepository.Change(2, 1, 1),
+      new CounterRepository.Change(2, 1, 2),
+      new CounterRepository.Change(2, 1, 3)));
+    assertEquals(2.0, registry.get("Stream_" + NamedCountNotification.NamedStream.STREAM_KEY + "_compacted_count").counter().count());
+  }
+}
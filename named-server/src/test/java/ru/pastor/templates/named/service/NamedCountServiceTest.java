@@ -1,16 +1,33 @@
 package ru.pastor.templates.named.service;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
 import ru.pastor.templates.named.cache.NamedCache;
 import ru.pastor.templates.named.repository.CatalogueRepository;
+import ru.pastor.templates.named.repository.CounterRepository;
+import ru.pastor.templates.named.repository.entity.CatalogueEntity;
+import ru.pastor.templates.named.repository.entity.CounterEntity;
 
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -28,7 +45,7 @@ class NamedCountServiceTest extends BasisTestSuit {
 
   @Autowired
   @Qualifier("NamedCache.Values")
-  private NamedCache<String, Integer> valuesCache;
+  private NamedCache<String, Long> valuesCache;
 
   @Autowired
   @Qualifier("NamedCache.Catalogue")
@@ -52,6 +69,7 @@ class NamedCountServiceTest extends BasisTestSuit {
     }
 
     if (catalogueCache != null) {
+      clearInvocations(catalogueCache);
       when(catalogueCache.get("test-counter")).thenReturn(Mono.just(1));
     }
   }
@@ -68,8 +86,8 @@ class NamedCountServiceTest extends BasisTestSuit {
       .expectNext(1L)
       .verifyComplete();
 
-    // Verify that the cache was called
-    verify(catalogueCache).get("test-counter");
+    // The catalogue source is queried only while the name is missing from the index
+    verify(catalogueCache, atMost(1)).get("test-counter");
   }
 
   @Test
@@ -83,8 +101,8 @@ class NamedCountServiceTest extends BasisTestSuit {
       .expectNext(2L)
       .verifyComplete();
 
-    // Verify that the cache was called
-    verify(catalogueCache, times(3)).get("test-counter");
+    // The catalogue source is queried only while the name is missing from the index
+    verify(catalogueCache, atMost(1)).get("test-counter");
   }
 
   @Test
@@ -98,8 +116,8 @@ class NamedCountServiceTest extends BasisTestSuit {
       .expectNext(6L)
       .verifyComplete();
 
-    // Verify that the cache was called
-    verify(catalogueCache, atLeast(1)).get("test-counter");
+    // The catalogue source is queried only while the name is missing from the index
+    verify(catalogueCache, atMost(1)).get("test-counter");
   }
 
   @Test
@@ -135,4 +153,104 @@ class NamedCountServiceTest extends BasisTestSuit {
     // Verify that the cache was called
     verify(catalogueCache).get("non-existent");
   }
+
+  @Test
+  void testStagesAreTimedSeparately() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Counters values = mock(Counters.class);
+    CatalogueIndex catalogue = mock(CatalogueIndex.class);
+    NamedCountNotification notification = mock(NamedCountNotification.class);
+    when(catalogue.id("stage-counter")).thenReturn(CatalogueIndex.MISSING);
+    when(catalogue.resolve("stage-counter")).thenReturn(Mono.just(3));
+    when(values.increment(1, 3, 1)).thenReturn(Mono.just(4L));
+    when(notification.update(1, 3, 4)).thenReturn(Mono.empty());
+    NamedCountService service = new NamedCountService.Standard(values, catalogue, notification,
+      mock(CounterRepository.class), registry);
+
+    StepVerifier.create(service.increment("stage-counter", 1))
+      .expectNext(4L)
+      .verifyComplete();
+
+    for (String stage : new String[] {"catalogue", "values", "publish"}) {
+      assertEquals(1, registry.get("Counter_stage_time")
+        .tag("operation", "increment")
+        .tag("stage", stage)
+        .tag("outcome", "success")
+        .timer()
+        .count(), stage);
+    }
+  }
+
+  @Test
+  void testCancelledStageIsNotTimedAsSuccess() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Counters values = mock(Counters.class);
+    CatalogueIndex catalogue = new CatalogueIndex.Standard(null, null);
+    catalogue.put("slow-counter", 3);
+    when(values.increment(1, 3, 1)).thenReturn(Mono.never());
+    NamedCountService service = new NamedCountService.Standard(values, catalogue, mock(NamedCountNotification.class),
+      mock(CounterRepository.class), registry);
+
+    // The client goes away while the value is still being incremented
+    StepVerifier.create(service.increment("slow-counter", 1))
+      .thenCancel()
+      .verify();
+
+    assertEquals(1, registry.get("Counter_stage_time")
+      .tag("stage", "values")
+      .tag("outcome", "cancelled")
+      .timer()
+      .count());
+    assertEquals(0, registry.get("Counter_stage_time")
+      .tag("stage", "values")
+      .tag("outcome", "success")
+      .timer()
+      .count());
+  }
+
+  @Test
+  void testOnlyIndexMissReachesCatalogueSource() {
+    @SuppressWarnings("unchecked")
+    NamedCache<String, Integer> source = mock(NamedCache.class);
+    Counters values = mock(Counters.class);
+    when(source.get("indexed-counter")).thenReturn(Mono.just(3));
+    when(values.increment(1, 3, 1)).thenReturn(Mono.just(4L), Mono.just(5L));
+    when(values.publishes()).thenReturn(true);
+    NamedCountService service = new NamedCountService.Standard(values, new CatalogueIndex.Standard(source, null),
+      mock(NamedCountNotification.class), mock(CounterRepository.class));
+
+    StepVerifier.create(service.increment("indexed-counter", 1))
+      .expectNext(4L)
+      .verifyComplete();
+    StepVerifier.create(service.increment("indexed-counter", 1))
+      .expectNext(5L)
+      .verifyComplete();
+
+    verify(source, times(1)).get("indexed-counter");
+  }
+
+  @Test
+  void testListAddsCountersKnownOnlyToCache() {
+    Counters values = mock(Counters.class);
+    CatalogueIndex catalogue = mock(CatalogueIndex.class);
+    CounterRepository repository = mock(CounterRepository.class);
+    when(catalogue.name(2)).thenReturn("list-a");
+    when(catalogue.name(3)).thenReturn("list-b");
+    when(catalogue.name(4)).thenReturn("other");
+    when(values.group(1)).thenReturn(Mono.just(Map.of(2L, 7L, 3L, 3L, 4L, 1L)));
+    when(repository.list(eq(1L), eq("list"), eq(0L), anyInt())).thenReturn(Flux.just(CounterEntity.builder()
+      .id(10)
+      .userId(1)
+      .value(5)
+      .catalogue(CatalogueEntity.builder().id(2).name("list-a").build())
+      .build()));
+    NamedCountService service = new NamedCountService.Standard(values, catalogue, mock(NamedCountNotification.class), repository);
+
+    StepVerifier.create(service.list(1, "list", 0, 0).map(model -> model.information().name() + "=" + model.value()))
+      .expectNext("list-a=7", "list-b=3")
+      .verifyComplete();
+
+    verify(values).group(1);
+    verify(values, never()).get(anyLong(), anyLong());
+  }
 }
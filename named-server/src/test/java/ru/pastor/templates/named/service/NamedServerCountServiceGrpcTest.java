@@ -3,15 +3,28 @@ package ru.pastor.templates.named.service;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import ru.pastor.templates.named.cache.CatalogueIndex;
+import ru.pastor.templates.named.cache.Counters;
+import ru.pastor.templates.named.cache.NamedCache;
+import ru.pastor.templates.named.repository.CounterRepository;
 import ru.pastor.templates.named.server.grpc.CountFilter;
+import ru.pastor.templates.named.server.grpc.CountIncrementBatch;
 import ru.pastor.templates.named.server.grpc.CountIncrementRequest;
 import ru.pastor.templates.named.server.grpc.Status;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 class NamedServerCountServiceGrpcTest extends BasisTestSuit {
 
@@ -23,6 +36,19 @@ class NamedServerCountServiceGrpcTest extends BasisTestSuit {
   @Autowired
   private DatabaseClient databaseClient;
 
+  @Autowired
+  @Qualifier("NamedCache.Catalogue")
+  private NamedCache<String, Integer> catalogueCache;
+
+  @Autowired
+  private Counters counters;
+
+  @Autowired
+  private NamedCountNotification notification;
+
+  @Autowired
+  private CounterRepository counterRepository;
+
   @BeforeEach
   protected void setUp() {
     super.setUp();
@@ -75,6 +101,34 @@ class NamedServerCountServiceGrpcTest extends BasisTestSuit {
       .verifyComplete();
   }
 
+  @Test
+  void testGetById() {
+    if (grpcService == null || namedCountService == null) {
+      System.out.println("[DEBUG_LOG] Skipping testGetById because required beans are null");
+      return;
+    }
+
+    Long value = namedCountService.increment("test-counter", 2, 10).block();
+
+    CountFilter request = CountFilter.newBuilder()
+      .setId(1)
+      .setUserId(2)
+      .build();
+
+    StepVerifier.create(new NamedServerCountServiceGrpc(namedCountService, 1, true).get(request))
+      .assertNext(response -> {
+        assertEquals(Status.SUCCESS, response.getStatus());
+        assertEquals(1, response.getId());
+        assertEquals("", response.getName());
+        assertEquals(value, response.getValue());
+      })
+      .verifyComplete();
+
+    StepVerifier.create(grpcService.get(CountFilter.newBuilder().setId(1000).setUserId(2).build()))
+      .assertNext(response -> assertEquals(Status.NOT_FOUND, response.getStatus()))
+      .verifyComplete();
+  }
+
   @Test
   void testGetNonExistent() {
     if (grpcService == null) {
@@ -169,12 +223,139 @@ class NamedServerCountServiceGrpcTest extends BasisTestSuit {
       return;
     }
 
-    // Since list() is not implemented in the service (it calls super.list()),
-    // we'll just verify that it throws an UNIMPLEMENTED error
+    // User without stored counters gets an empty stream
     CountFilter request = CountFilter.newBuilder()
       .setUserId(1)
+      .setName("test-")
+      .setLimit(10)
       .build();
     StepVerifier.create(grpcService.list(request))
       .verifyComplete();
   }
+
+  @Test
+  void testListReadsUnsignedLimitAndAfterId() {
+    NamedCountService service = mock(NamedCountService.class);
+    when(service.list(anyLong(), anyString(), anyLong(), anyInt())).thenReturn(Flux.empty());
+    NamedServerCountServiceGrpc grpc = new NamedServerCountServiceGrpc(service);
+
+    // uint32 4294967295 and uint64 2^64 - 1 arrive as -1
+    StepVerifier.create(grpc.list(CountFilter.newBuilder()
+        .setUserId(1)
+        .setName("test-")
+        .setLimit(-1)
+        .setAfterId(-1)
+        .build()))
+      .verifyComplete();
+
+    verify(service).list(1, "test-", Long.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  @Test
+  void testBatchIncrement() {
+    if (grpcService == null || catalogueCache == null) {
+      System.out.println("[DEBUG_LOG] Skipping testBatchIncrement because required beans are null");
+      return;
+    }
+
+    CountIncrementBatch request = CountIncrementBatch.newBuilder()
+      .addRequests(CountIncrementRequest.newBuilder()
+        .setName("test-counter")
+        .setUserId(1)
+        .setDelta(5)
+        .build())
+      .addRequests(CountIncrementRequest.newBuilder()
+        .setName("missing-counter")
+        .setUserId(1)
+        .setDelta(5)
+        .build())
+      .addRequests(CountIncrementRequest.newBuilder()
+        .setName("test-counter")
+        .setUserId(2)
+        .build())
+      .addRequests(CountIncrementRequest.newBuilder()
+        .setId(999)
+        .setUserId(1)
+        .build())
+      .build();
+
+    StepVerifier.create(withLocalCatalogue(1).batchIncrement(request))
+      .assertNext(response -> {
+        assertEquals(4, response.getValuesCount());
+        assertEquals(Status.SUCCESS, response.getValues(0).getStatus());
+        assertEquals("test-counter", response.getValues(0).getName());
+        assertEquals(Status.NOT_FOUND, response.getValues(1).getStatus());
+        assertEquals("missing-counter", response.getValues(1).getName());
+        assertEquals(Status.SUCCESS, response.getValues(2).getStatus());
+        assertEquals(Status.NOT_FOUND, response.getValues(3).getStatus());
+        assertEquals(999, response.getValues(3).getId());
+      })
+      .verifyComplete();
+  }
+
+  @Test
+  void testBatchFailureIsReportedPerIncrement() {
+    Counters values = mock(Counters.class);
+    CatalogueIndex catalogue = new CatalogueIndex.Standard(null, null);
+    catalogue.put("first", 1);
+    catalogue.put("second", 2);
+    catalogue.put("third", 3);
+    when(values.publishes()).thenReturn(true);
+    when(values.increment(1, 1, 1)).thenReturn(Mono.just(11L));
+    when(values.increment(1, 2, 1)).thenReturn(Mono.error(new IllegalStateException("Redis timeout")));
+    when(values.increment(1, 3, 1)).thenReturn(Mono.just(13L));
+    NamedServerCountServiceGrpc grpc = new NamedServerCountServiceGrpc(
+      new NamedCountService.Standard(values, catalogue, notification, counterRepository));
+
+    CountIncrementBatch request = CountIncrementBatch.newBuilder()
+      .addRequests(CountIncrementRequest.newBuilder().setName("first").setUserId(1).build())
+      .addRequests(CountIncrementRequest.newBuilder().setName("second").setUserId(1).build())
+      .addRequests(CountIncrementRequest.newBuilder().setName("third").setUserId(1).build())
+      .build();
+
+    StepVerifier.create(grpc.batchIncrement(request))
+      .assertNext(response -> {
+        assertEquals(Status.SUCCESS, response.getValues(0).getStatus());
+        assertEquals(11, response.getValues(0).getValue());
+        assertEquals(Status.FAILURE, response.getValues(1).getStatus());
+        assertEquals("Redis timeout", response.getValues(1).getError().getMessage());
+        assertEquals("second", response.getValues(1).getName());
+        assertEquals(Status.SUCCESS, response.getValues(2).getStatus());
+        assertEquals(13, response.getValues(2).getValue());
+      })
+      .verifyComplete();
+    verify(values).increment(1, 3, 1);
+  }
+
+  @Test
+  void testIncrementStream() {
+    if (grpcService == null || catalogueCache == null) {
+      System.out.println("[DEBUG_LOG] Skipping testIncrementStream because required beans are null");
+      return;
+    }
+
+    Flux<CountIncrementRequest> requests = Flux.just(
+      CountIncrementRequest.newBuilder().setName("test-counter").setUserId(1).setDelta(3).build(),
+      CountIncrementRequest.newBuilder().setName("missing-counter").setUserId(1).build(),
+      CountIncrementRequest.newBuilder().setName("test-counter").setUserId(2).setDelta(7).build());
+
+    StepVerifier.create(withLocalCatalogue(1).incrementStream(requests))
+      .assertNext(response -> assertEquals(Status.SUCCESS, response.getStatus()))
+      .assertNext(response -> {
+        assertEquals(Status.NOT_FOUND, response.getStatus());
+        assertEquals("missing-counter", response.getName());
+      })
+      .assertNext(response -> assertEquals(Status.SUCCESS, response.getStatus()))
+      .verifyComplete();
+  }
+
+  // Own catalogue with only test-counter: stubbing missing counters on the shared mock would leak into other test classes
+  @SuppressWarnings("unchecked")
+  private NamedServerCountServiceGrpc withLocalCatalogue(int inFlight) {
+    NamedCache<String, Integer> catalogue = mock(NamedCache.class);
+    when(catalogue.get(anyString())).thenReturn(Mono.empty());
+    when(catalogue.get("test-counter")).thenReturn(Mono.just(1));
+    return new NamedServerCountServiceGrpc(new NamedCountService.Standard(counters, new CatalogueIndex.Standard(catalogue, null),
+      notification, counterRepository), inFlight);
+  }
 }